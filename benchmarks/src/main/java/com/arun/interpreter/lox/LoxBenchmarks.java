@@ -0,0 +1,184 @@
+package com.arun.interpreter.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.arun.interpreter.lox.ast.AstPrinter;
+import com.arun.interpreter.lox.ast.Chunk;
+import com.arun.interpreter.lox.ast.ClosureCompiler;
+import com.arun.interpreter.lox.ast.Compiler;
+import com.arun.interpreter.lox.ast.Expr;
+import com.arun.interpreter.lox.ast.FlatTree;
+import com.arun.interpreter.lox.ast.HandleCompiler;
+import com.arun.interpreter.lox.ast.Interpreter;
+import com.arun.interpreter.lox.ast.Jit;
+import com.arun.interpreter.lox.ast.Node;
+import com.arun.interpreter.lox.ast.VM;
+
+/**
+ * Benchmarks for every phase of the pipeline (scan, parse, print, evaluate) and for the whole of Lox.run,
+ * over each {@link Workload}. Results are reported as throughput and average time, with the allocation
+ * rate from the gc profiler.
+ *
+ * Run all of them with: java -jar target/benchmarks.jar
+ * Any JMH option can be passed on the command line, eg: java -jar target/benchmarks.jar scan -p workload=WIDE
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoxBenchmarks {
+
+    @State(Scope.Thread)
+    public static class Source {
+        @Param
+        Workload workload;
+
+        String source;
+        List<Token> tokens;
+        TokenBuffer buffer;
+        Expr expression;
+
+        @Setup
+        public void setUp() {
+            source = workload.source();
+            tokens = new Scanner(source).scanTokens();
+            buffer = new Scanner(source).scanTokenBuffer();
+            expression = new Parser(tokens).parse();
+            if (expression == null) {
+                throw new IllegalStateException("Workload " + workload + " does not parse.");
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Backend {
+        @Param({"ast", "vm", "nodes", "jit", "handles", "closures", "flat"})
+        String backend;
+
+        Interpreter interpreter;
+        VM vm;
+        Chunk chunk;
+        Node.Root root;
+        // compiles the workload once warmup has run it lox.jit.threshold times
+        Jit jit;
+        Jit.Site site;
+        // the tree in a static final field of its own class, the way the Engine runs it
+        HandleCompiler.Compiled handle;
+        ClosureCompiler.Closure closure;
+        FlatTree flat;
+
+        @Setup
+        public void setUp(Source source) {
+            interpreter = new Interpreter();
+            vm = new VM();
+            chunk = new Compiler().compile(source.expression);
+            root = Node.create(source.expression);
+            jit = new Jit();
+            site = new Jit.Site();
+            handle = new HandleCompiler().compileConstant(source.expression);
+            closure = new ClosureCompiler().compile(source.expression);
+            flat = FlatTree.from(source.expression);
+        }
+    }
+
+    // Lox.run prints the AST and the result, swallow it so we measure the pipeline and not the console.
+    @State(Scope.Benchmark)
+    public static class Silenced {
+        private PrintStream out;
+        private PrintStream err;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            out = System.out;
+            err = System.err;
+            PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(nowhere);
+            System.setErr(nowhere);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    @Benchmark
+    public List<Token> scan(Source source) {
+        return new Scanner(source.source).scanTokens();
+    }
+
+    // The same scan into a TokenBuffer, no Token object or lexeme per token.
+    @Benchmark
+    public TokenBuffer scanCompact(Source source) {
+        return new Scanner(source.source).scanTokenBuffer();
+    }
+
+    @Benchmark
+    public Expr parse(Source source) {
+        return new Parser(source.tokens).parse();
+    }
+
+    // The parser reading straight from a TokenBuffer, a Token is only built for each operator.
+    @Benchmark
+    public Expr parseCompact(Source source) {
+        return new Parser(new TokenStream(source.buffer)).parse();
+    }
+
+    @Benchmark
+    public String print(Source source) {
+        return new AstPrinter().print(source.expression);
+    }
+
+    @Benchmark
+    public Object evaluate(Source source, Backend backend) {
+        switch (backend.backend) {
+            case "vm": return backend.vm.run(backend.chunk);
+            case "nodes": return backend.root.execute();
+            case "jit": return backend.jit.evaluate(source.expression, backend.site);
+            case "handles": return backend.handle.evaluate();
+            case "closures": return backend.closure.evaluate();
+            case "flat": return backend.flat.evaluate();
+            default: return backend.interpreter.evaluate(source.expression);
+        }
+    }
+
+    @Benchmark
+    public void run(Source source, Silenced silenced) {
+        Lox.run(source.source);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(LoxBenchmarks.class.getSimpleName());
+        }
+        new Runner(options.build()).run();
+    }
+}
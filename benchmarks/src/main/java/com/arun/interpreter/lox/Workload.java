@@ -0,0 +1,66 @@
+package com.arun.interpreter.lox;
+
+/**
+ * Source inputs used by the benchmarks. Each workload is a single expression, since that is what Lox.run evaluates.
+ */
+public enum Workload {
+    // A short line like one typed into the REPL
+    REPL {
+        @Override
+        String source() {
+            return "(1 + 2) * (4 - 3) / 2 == 1.5";
+        }
+    },
+    // Lots of operators at the same nesting level: 1 + 2 * 3 - 4 ...
+    WIDE {
+        @Override
+        String source() {
+            String[] operators = {" + ", " * ", " - ", " / "};
+            StringBuilder builder = new StringBuilder("1");
+            for (int i = 0; i < 1000; i++) {
+                builder.append(operators[i % operators.length]).append(i % 9 + 1);
+            }
+            return builder.toString();
+        }
+    },
+    // Deeply nested groupings and unary operators: -(1 + -(2 * -(3 ...)))
+    NESTED {
+        @Override
+        String source() {
+            int depth = 300;
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                builder.append("-(").append(i % 9 + 1).append(i % 2 == 0 ? " + " : " * ");
+            }
+            builder.append("1");
+            for (int i = 0; i < depth; i++) {
+                builder.append(")");
+            }
+            return builder.toString();
+        }
+    },
+    // A long chain of string concatenations: "lox" + "lox" + ...
+    STRINGS {
+        @Override
+        String source() {
+            StringBuilder builder = new StringBuilder("\"lox\"");
+            for (int i = 0; i < 500; i++) {
+                builder.append(" + \"s").append(i).append("\"");
+            }
+            return builder.toString();
+        }
+    },
+    // Many number literals with fractional parts: 1.25 * 2.5 + 3.75 ...
+    NUMBERS {
+        @Override
+        String source() {
+            StringBuilder builder = new StringBuilder("0.5");
+            for (int i = 0; i < 1000; i++) {
+                builder.append(i % 2 == 0 ? " + " : " * ").append(i).append('.').append(i % 100);
+            }
+            return builder.toString();
+        }
+    };
+
+    abstract String source();
+}
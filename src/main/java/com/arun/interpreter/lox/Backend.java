@@ -0,0 +1,21 @@
+package com.arun.interpreter.lox;
+
+/**
+ * The ways an expression can be evaluated. They all produce the same values and the same runtime errors.
+ */
+public enum Backend {
+    // the tree walk interpreter
+    AST,
+    // bytecode compiler and stack based virtual machine
+    VM,
+    // self specializing node tree
+    NODES,
+    // hot expressions compiled into JVM classes, pairs with an ExpressionCache
+    JIT,
+    // a tree of method handles built with java.lang.invoke combinators
+    HANDLES,
+    // a tree of lambdas with every operator resolved up front
+    CLOSURES,
+    // post order node arrays evaluated in one pass
+    FLAT
+}
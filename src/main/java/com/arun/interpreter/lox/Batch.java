@@ -0,0 +1,85 @@
+package com.arun.interpreter.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Batch mode: every non blank line of the file is an independent expression (a record).
+ * Records are scanned, parsed and evaluated in parallel on the common fork join pool through one shared
+ * {@link Engine}, each with its own diagnostics, and the results are written back in input order.
+ *
+ * The file is processed a slice of records at a time so memory stays bounded on very large inputs.
+ * Errors report the line of the record in the file.
+ */
+class Batch {
+    // number of records evaluated in parallel before their results are written out
+    private static final int SLICE = 16384;
+
+    private final Engine engine;
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    Batch(Engine engine, PrintStream out, PrintStream err) {
+        this.engine = engine;
+        this.out = out;
+        this.err = err;
+    }
+
+    /** Evaluate every record in the file, returns the exit code runFile would use: 0, 65 or 70. */
+    int run(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, Charset.defaultCharset())) {
+            List<String> sources = new ArrayList<>(SLICE);
+            List<Integer> lines = new ArrayList<>(SLICE);
+            int line = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (text.isBlank()) continue;
+
+                sources.add(text);
+                lines.add(line);
+                if (sources.size() == SLICE) {
+                    runSlice(sources, lines);
+                    sources.clear();
+                    lines.clear();
+                }
+            }
+            runSlice(sources, lines);
+        }
+
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+
+    private void runSlice(List<String> sources, List<Integer> lines) {
+        int count = sources.size();
+        String[] results = new String[count];
+        Diagnostics[] diagnostics = new Diagnostics[count];
+
+        IntStream.range(0, count).parallel().forEach(i -> {
+            diagnostics[i] = new Diagnostics();
+            Result result = engine.evaluate(sources.get(i), lines.get(i), diagnostics[i]);
+            if (result.succeeded()) results[i] = result.text();
+        });
+
+        for (int i = 0; i < count; i++) {
+            if (results[i] != null) out.println(results[i]);
+            for (String message : diagnostics[i].messages()) {
+                err.println(message);
+            }
+            hadError |= diagnostics[i].hadError();
+            hadRuntimeError |= diagnostics[i].hadRuntimeError();
+        }
+    }
+}
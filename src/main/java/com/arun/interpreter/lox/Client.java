@@ -0,0 +1,79 @@
+package com.arun.interpreter.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * A thin client for the {@link Server}: sends every non blank line it reads as an expression and prints the results
+ * and messages the way running the expression locally would.
+ */
+class Client implements Closeable {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    Client(Path path) throws IOException {
+        this.channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(path));
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /** Evaluate a source that starts on the given line, errors report lines from there on. */
+    Protocol.Response evaluate(String source, int line) throws IOException {
+        out.writeByte(Protocol.EVALUATE);
+        out.writeInt(line);
+        Protocol.writeString(out, source);
+        out.flush();
+        return Protocol.readResponse(in);
+    }
+
+    String stats() throws IOException {
+        out.writeByte(Protocol.STATS);
+        out.flush();
+        return Protocol.readResponse(in).text;
+    }
+
+    /**
+     * Evaluate every line read as its own expression, errors report the line it was read from.
+     * Returns the exit code runFile would use: 0, 65 or 70.
+     */
+    int run(BufferedReader reader, PrintStream stdout, PrintStream stderr) throws IOException {
+        boolean hadError = false;
+        boolean hadRuntimeError = false;
+
+        int line = 0;
+        String text;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            if (text.isBlank()) continue;
+
+            Protocol.Response response = evaluate(text, line);
+            if (response.status == Protocol.OK) stdout.println(response.text);
+            for (String message : response.messages) stderr.println(message);
+
+            hadError |= response.status == Protocol.SYNTAX_ERROR;
+            hadRuntimeError |= response.status == Protocol.RUNTIME_ERROR;
+        }
+
+        if (hadError) return Protocol.SYNTAX_ERROR;
+        if (hadRuntimeError) return Protocol.RUNTIME_ERROR;
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
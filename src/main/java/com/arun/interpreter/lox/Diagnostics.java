@@ -0,0 +1,85 @@
+package com.arun.interpreter.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the errors reported while scanning, parsing and evaluating one piece of source.
+ * Each evaluation gets its own Diagnostics, so evaluations running at the same time don't see each other's errors.
+ *
+ * Messages are either printed straight away to a stream (what the REPL and runFile do) or kept in order so the
+ * caller can decide when and where to write them.
+ */
+public class Diagnostics {
+    // where messages are printed as they are reported, null to keep them instead
+    private final PrintStream out;
+    private final List<String> messages = new ArrayList<>();
+
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    // Keep the messages, see messages()
+    public Diagnostics() {
+        this(null);
+    }
+
+    public Diagnostics(PrintStream out) {
+        this.out = out;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        emit("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    public void runtimeError(RuntimeError error) {
+        runtimeError(error, 0);
+    }
+
+    // A runtime error in a tree parsed for the same text at another line, the offset moves it to this one.
+    void runtimeError(RuntimeError error, int lineOffset) {
+        emit(error.getMessage() + "\n[line " + (error.token.line + lineOffset) + "]");
+        hadRuntimeError = true;
+    }
+
+    // Report everything another Diagnostics collected, in its order, eg: the errors of a piece of work done aside.
+    void append(Diagnostics other) {
+        for (String message : other.messages) emit(message);
+        hadError |= other.hadError;
+        hadRuntimeError |= other.hadRuntimeError;
+    }
+
+    private void emit(String message) {
+        if (out != null) {
+            out.println(message);
+        } else {
+            messages.add(message);
+        }
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    /** Messages reported so far, in order. Always empty when messages are printed to a stream. */
+    public List<String> messages() {
+        return messages;
+    }
+}
@@ -0,0 +1,256 @@
+package com.arun.interpreter.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+import com.arun.interpreter.lox.ast.Chunk;
+import com.arun.interpreter.lox.ast.ClosureCompiler;
+import com.arun.interpreter.lox.ast.Compiler;
+import com.arun.interpreter.lox.ast.Expr;
+import com.arun.interpreter.lox.ast.FlatTree;
+import com.arun.interpreter.lox.ast.HandleCompiler;
+import com.arun.interpreter.lox.ast.Interner;
+import com.arun.interpreter.lox.ast.Interpreter;
+import com.arun.interpreter.lox.ast.IterativeInterpreter;
+import com.arun.interpreter.lox.ast.Jit;
+import com.arun.interpreter.lox.ast.Loxc;
+import com.arun.interpreter.lox.ast.Node;
+import com.arun.interpreter.lox.ast.NodeCounter;
+import com.arun.interpreter.lox.ast.Optimizer;
+import com.arun.interpreter.lox.ast.Profile;
+import com.arun.interpreter.lox.ast.ProfilingInterpreter;
+import com.arun.interpreter.lox.ast.VM;
+
+/**
+ * Embedding API for evaluating Lox expressions.
+ *
+ * An Engine holds its configuration and the expression cache. Every evaluation creates its own scanner, parser and
+ * interpreter and reports into its own {@link Diagnostics}, and what the engine learns about an expression is kept
+ * on its {@link Program}. The cache and the programs are safe to share, so a single Engine can be used from any
+ * number of threads at once.
+ *
+ *   Engine engine = new Engine(Backend.VM, true, new ExpressionCache(10_000, 64 << 20));
+ *   Result result = engine.evaluate("(1 + 2) * 3");
+ *   if (result.succeeded()) System.out.println(result.text());
+ */
+public class Engine {
+    // Trees taller than this skip the recursive passes, the optimizer, the cache and the backends, and are evaluated
+    // by the IterativeInterpreter. Every recursive pass handles this height with room to spare on a default stack.
+    static final int MAX_RECURSIVE_HEIGHT = 1000;
+
+    private final Backend backend;
+    private final boolean optimize;
+    // parsed expressions by source text, null when caching is off
+    private final ExpressionCache cache;
+
+    // The VM keeps no state between runs.
+    private final VM vm = new VM();
+    // Compiles hot expressions, the counts and compiled classes are kept on each program's Jit.Site.
+    private final Jit jit = new Jit();
+    // Filled in by the tree walker when profiling is on, see Profile. The other backends don't profile.
+    private final Profile profile;
+
+    public Engine() {
+        this(Backend.AST, false);
+    }
+
+    public Engine(Backend backend, boolean optimize) {
+        this(backend, optimize, null);
+    }
+
+    public Engine(Backend backend, boolean optimize, ExpressionCache cache) {
+        this.backend = backend;
+        this.optimize = optimize;
+        this.cache = cache;
+        this.profile = Profile.ENABLED && backend == Backend.AST ? new Profile() : null;
+    }
+
+    /** Evaluate a source string, messages are kept in the result's diagnostics. */
+    public Result evaluate(String source) {
+        return evaluate(source, 1, new Diagnostics());
+    }
+
+    /** Evaluate a source string that starts on the given line, reporting into the given diagnostics. */
+    public Result evaluate(String source, int line, Diagnostics diagnostics) {
+        Program program = compile(source, line, diagnostics);
+
+        // Stop if there was a syntax error.
+        if (diagnostics.hadError()) return new Result(null, diagnostics);
+
+        return execute(program, line, diagnostics);
+    }
+
+    /**
+     * Parse and, if configured, optimize a source string, ready for {@link #execute(Program, Diagnostics)} as many
+     * times as needed.
+     * With a cache, a source seen before skips the front end, even if it was seen at another line: the program then
+     * keeps the line it was first parsed at, pass the line to {@link #execute(Program, int, Diagnostics)} to have
+     * runtime errors reported at this one. Returns null if there was a syntax error.
+     *
+     * The cache holds the optimized program, so a hit skips the optimizer too, and the program's compiled forms and
+     * jit counts carry over from one evaluation of the source to the next.
+     */
+    public Program compile(String source, int line, Diagnostics diagnostics) {
+        return compile(source, line, diagnostics, null);
+    }
+
+    // Like compile() above, and prints how many nodes the optimizer removed to the log, when it ran. A cache hit
+    // prints nothing, the source was optimized when it went into the cache.
+    Program compile(String source, int line, Diagnostics diagnostics, PrintStream log) {
+        if (cache != null) {
+            Program cached = cache.get(source);
+            if (cached != null) return cached;
+        }
+
+        Program program = parse(source, line, diagnostics);
+        if (program == null) return null;
+        if (program.deep) return program;
+
+        program = optimize(program, log);
+        if (cache != null) cache.put(source, program);
+        return program;
+    }
+
+    /** Scan and parse a source string, without optimizing or caching. Returns null if there was a syntax error. */
+    public Program parse(String source, int line, Diagnostics diagnostics) {
+        Phase.Span span = Phase.PARSE.start();
+
+        TokenStream tokens = null;
+        if (ParallelScanner.worthIt(source)) {
+            // A large source is scanned up front, in parallel when there are processors to spare. Lexical errors are rare, and when there are some the
+            // source is scanned again lazily below, so they come out interleaved with syntax errors as usual.
+            Diagnostics scanned = new Diagnostics();
+            TokenBuffer buffer = new ParallelScanner(source, line, scanned).scanTokenBuffer();
+            if (!scanned.hadError()) tokens = new TokenStream(buffer);
+        }
+
+        // Otherwise the parser pulls tokens from the scanner as it needs them.
+        if (tokens == null) tokens = new TokenStream(new Scanner(source, line, diagnostics));
+
+        Parser parser = new Parser(tokens, diagnostics);
+        Expr expression = parser.parse();
+        tokens.drain();
+
+        if (span != null) span.end(source.length(), tokens.count(), expression == null ? 0 : NodeCounter.count(expression));
+        if (diagnostics.hadError()) return null;
+
+        return new Program(expression, line, parser.height() > MAX_RECURSIVE_HEIGHT);
+    }
+
+    // When the engine optimizes, optimize a program that was just parsed or loaded, then share the structurally
+    // identical subtrees of the result, see Interner. The tree walker computes each shared subexpression once per
+    // evaluation, the other backends evaluate the result like any other tree. This happens once per program: a new
+    // Program starts over with no compiled forms and no jit counts. A deep program comes back as it is, the optimizer
+    // would recurse all the way down it. How many nodes the optimizer removed is printed to the log, if there is one.
+    private Program optimize(Program program, PrintStream log) {
+        if (!optimize || program.deep) return program;
+
+        Phase.Span span = Phase.OPTIMIZE.start();
+        Optimizer optimizer = new Optimizer();
+        Interner interner = new Interner();
+        Expr dag = interner.intern(optimizer.optimize(program.expression));
+        if (span != null) span.end(0, 0, NodeCounter.count(dag));
+        if (log != null) log.println("[optimizer] removed " + optimizer.removedNodes() + " nodes");
+        return new Program(dag, program.parsed, program.line, false, interner.shared());
+    }
+
+    /**
+     * Load a program precompiled into a .loxc file, see {@link Loxc}, and optimize it if the engine is configured to.
+     * A tree too tall for the recursive passes loads as a deep program, like one parsed from source. Its tokens carry
+     * the lines of a source that started at line 1.
+     */
+    public Program load(Path path) throws IOException {
+        return load(path, null);
+    }
+
+    // Like load() above, printing how many nodes the optimizer removed to the log.
+    Program load(Path path, PrintStream log) throws IOException {
+        Loxc.Tree tree = Loxc.read(path);
+        return optimize(new Program(tree.expression, 1, tree.height > MAX_RECURSIVE_HEIGHT), log);
+    }
+
+    /** Evaluate a program with the configured backend. A runtime error is reported to the diagnostics. */
+    public Result execute(Program program, Diagnostics diagnostics) {
+        return execute(program, program.line, diagnostics);
+    }
+
+    /** Evaluate a program whose source starts on the given line, which runtime errors are reported relative to. */
+    public Result execute(Program program, int line, Diagnostics diagnostics) {
+        Phase.Span span = Phase.EVALUATE.start();
+        try {
+            return new Result(evaluate(program), diagnostics);
+        } catch (RuntimeError error) {
+            diagnostics.runtimeError(error, line - program.line);
+            return new Result(null, diagnostics);
+        } finally {
+            if (span != null) span.end(0, 0, NodeCounter.count(program.expression));
+        }
+    }
+
+    /**
+     * Execution profile of the expressions evaluated so far, null unless run with -Dlox.profile=true on the
+     * AST backend.
+     */
+    public Profile profile() {
+        return profile;
+    }
+
+    private Object evaluate(Program program) {
+        Expr expression = program.expression;
+        if (program.deep) return new IterativeInterpreter().evaluate(expression);
+
+        switch (backend) {
+            case VM: {
+                Chunk chunk = program.chunk;
+                if (chunk == null && !program.tooManyConstants) {
+                    chunk = new Compiler().compile(expression);
+                    if (chunk != null) {
+                        program.chunk = chunk;
+                    } else {
+                        program.tooManyConstants = true;
+                    }
+                }
+                return chunk != null ? vm.run(chunk) : interpret(program);
+            }
+            case NODES: {
+                // A node tree rewrites itself as it runs, so only one thread runs it at a time: it is taken off the
+                // program for the run and put back after. A thread that finds it gone builds a tree of its own, and
+                // keeps it on the program if nothing else was put back in the meantime.
+                Node.Root root = program.nodes.getAndSet(null);
+                if (root == null) root = Node.create(expression);
+                try {
+                    return root.execute();
+                } finally {
+                    program.nodes.compareAndSet(null, root);
+                }
+            }
+            case JIT:
+                return jit.evaluate(expression, program.shared, program.site);
+            case HANDLES: {
+                HandleCompiler.Compiled handle = program.handle;
+                if (handle == null) program.handle = handle = new HandleCompiler().compileConstant(expression);
+                return handle.evaluate();
+            }
+            case CLOSURES: {
+                ClosureCompiler.Closure closure = program.closure;
+                if (closure == null) program.closure = closure = new ClosureCompiler().compile(expression);
+                return closure.evaluate();
+            }
+            case FLAT: {
+                FlatTree flat = program.flat;
+                if (flat == null) program.flat = flat = FlatTree.from(expression);
+                return flat.evaluate();
+            }
+            default:
+                return interpret(program);
+        }
+    }
+
+    // the tree walker
+    private Object interpret(Program program) {
+        if (profile != null) return new ProfilingInterpreter(profile).evaluate(program.expression);
+        if (!program.shared.isEmpty()) return new Interpreter().evaluate(program.expression, program.shared);
+        return new Interpreter().evaluate(program.expression);
+    }
+}
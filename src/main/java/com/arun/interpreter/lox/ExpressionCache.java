@@ -0,0 +1,144 @@
+package com.arun.interpreter.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.arun.interpreter.lox.ast.SizeEstimator;
+
+/**
+ * Cache of parsed (and, if the engine optimizes, optimized) programs keyed by their source text,
+ * so a repeated expression skips the scanner and parser entirely.
+ *
+ * The cache is bounded both by number of entries and by the estimated memory of the cached trees.
+ * Lookups are lock free: each entry records when it was last used, and once the cache goes over either
+ * bound the least recently used entries are evicted until it is back under 90% of both, which keeps
+ * eviction off the path of every single insert.
+ *
+ * Keys are the source with leading blanks and trailing whitespace removed. The line a source starts on is not part
+ * of the key, so the same expression on every line of a batch is parsed once: the program remembers the line it was
+ * parsed at, and the engine moves its runtime errors to the line being run.
+ */
+public class ExpressionCache {
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ExpressionCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /** The cached program for this source, or null. */
+    public Program get(String source) {
+        Entry entry = entries.get(normalize(source));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        entry.lastUsed = clock.incrementAndGet();
+        return entry.program;
+    }
+
+    public void put(String source, Program program) {
+        String text = normalize(source);
+        // An optimized program also keeps the tree it was parsed into, the nodes the two share are counted once.
+        SizeEstimator estimator = new SizeEstimator();
+        long size = SizeEstimator.string(text) + estimator.estimate(program.expression) + estimator.estimate(program.parsed);
+        Entry entry = new Entry(program, size, clock.incrementAndGet());
+
+        if (entries.putIfAbsent(text, entry) != null) return;
+        if (bytes.addAndGet(size) > maxBytes || entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    // Drop the least recently used entries until the cache is under 90% of both bounds.
+    private synchronized void evict() {
+        long targetBytes = maxBytes / 10 * 9;
+        int targetEntries = maxEntries / 10 * 9;
+        if (bytes.get() <= targetBytes && entries.size() <= targetEntries) return;
+
+        // Lookups keep moving lastUsed while the entries are sorted, which breaks the sort's contract, so the entries
+        // are sorted on a copy of it.
+        List<Map.Entry<Long, Map.Entry<String, Entry>>> byAge = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            byAge.add(Map.entry(entry.getValue().lastUsed, entry));
+        }
+        byAge.sort(Map.Entry.comparingByKey());
+
+        for (Map.Entry<Long, Map.Entry<String, Entry>> aged : byAge) {
+            if (bytes.get() <= targetBytes && entries.size() <= targetEntries) break;
+            Map.Entry<String, Entry> oldest = aged.getValue();
+            if (entries.remove(oldest.getKey(), oldest.getValue())) {
+                bytes.addAndGet(-oldest.getValue().size);
+                evictions.increment();
+            }
+        }
+    }
+
+    // Entries are removed one at a time and their sizes taken off the count, like evict() does. Clearing the map and
+    // zeroing the count would lose the size of an entry put in between, or keep one put just before.
+    public void clear() {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entries.remove(entry.getKey(), entry.getValue())) bytes.addAndGet(-entry.getValue().size);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long estimatedBytes() {
+        return bytes.get();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "entries=" + size() + " bytes=" + estimatedBytes() +
+                " hits=" + hits() + " misses=" + misses() + " evictions=" + evictions();
+    }
+
+    // Leading spaces and tabs and trailing whitespace don't change the tokens or their lines.
+    private static String normalize(String source) {
+        int start = 0;
+        while (start < source.length() && (source.charAt(start) == ' ' || source.charAt(start) == '\t')) start++;
+        return source.substring(start).stripTrailing();
+    }
+
+    private static final class Entry {
+        final Program program;
+        final long size;
+        volatile long lastUsed;
+
+        Entry(Program program, long size, long lastUsed) {
+            this.program = program;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
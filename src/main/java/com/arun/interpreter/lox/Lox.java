@@ -3,24 +3,74 @@ package com.arun.interpreter.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.BindException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Locale;
 
 import com.arun.interpreter.lox.ast.Expr;
 import com.arun.interpreter.lox.ast.AstPrinter;
-import com.arun.interpreter.lox.ast.Interpreter;
+import com.arun.interpreter.lox.ast.Loxc;
+import com.arun.interpreter.lox.ast.NodeCounter;
+import com.arun.interpreter.lox.ast.Optimizer;
+import com.arun.interpreter.lox.ast.Profile;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // Fold constants and simplify the AST before evaluating it. Enable with -Dlox.optimize=true
+    private static final boolean optimize = Boolean.getBoolean("lox.optimize");
+
+    // Configured with system properties, and optimizes with -Dlox.optimize above:
+    //   -Dlox.backend=ast|vm|nodes|jit|handles|closures|flat
+    //       backend used to evaluate expressions, the tree walker by default
+    //   -Dlox.cache=10000
+    //       cache up to this many parsed expressions, off by default
+    //   -Dlox.jit.threshold=1000
+    //       evaluations of a cached expression before the jit backend compiles it
+    //   -Dlox.metrics=true
+    //       time every phase and print a report to stderr on exit, see Metrics
+    //   -Dlox.max.depth=1048576
+    //       deepest nesting of parentheses and unary operators the parser accepts
+    //   -Dlox.profile=true
+    //       profile the tree walker per node and print the hot spots to stderr on exit, ast backend only, see Profile
+    private static final Engine engine = createEngine();
+
+    // Extension of precompiled scripts, see Loxc
+    private static final String COMPILED = ".loxc";
+
+    private static Engine createEngine() {
+        Backend backend = Backend.valueOf(System.getProperty("lox.backend", "ast").toUpperCase(Locale.ROOT));
+        int cacheSize = Integer.getInteger("lox.cache", 0);
+        ExpressionCache cache = cacheSize > 0 ? new ExpressionCache(cacheSize, 256L << 20) : null;
+        if (Profile.ENABLED && backend != Backend.AST) {
+            System.err.println("[profile] Only the ast backend is profiled, -Dlox.profile does nothing with " +
+                    backend.name().toLowerCase(Locale.ROOT) + ".");
+        }
+        return new Engine(backend, optimize, cache);
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        if (Metrics.ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(Metrics.report())));
+        }
+        if (engine.profile() != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(engine.profile().report(20))));
+        }
+
+        if (args.length == 2 && args[0].equals("--batch")) {
+            runBatch(args[1]);
+        } else if ((args.length == 2 || args.length == 3) && args[0].equals("--compile")) {
+            compile(args[1], args.length == 3 ? args[2] : null);
+        } else if (args.length == 2 && args[0].equals("--serve")) {
+            serve(args[1]);
+        } else if ((args.length == 2 || args.length == 3) && args[0].equals("--client")) {
+            runClient(args[1], args.length == 3 ? args[2] : null);
+        } else if (args.length == 2 && args[0].equals("--stats")) {
+            try (Client client = new Client(Paths.get(args[1]))) {
+                System.out.print(client.stats());
+            }
+        } else if (args.length > 1) {
+            System.out.println("Usage: jlox [--batch | --compile | --serve | --client | --stats] [script | socket] [output]");
             System.exit(64);
         } else if (args.length == 1) {
             runFile(args[0]);
@@ -29,15 +79,67 @@ public class Lox {
         }
     }
 
-    // Read a file into a string
+    // Read a file into a string, or load a precompiled .loxc file
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Diagnostics diagnostics;
+        if (path.endsWith(COMPILED)) {
+            diagnostics = new Diagnostics(System.err);
+            run(engine.load(Paths.get(path), System.err), diagnostics);
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            diagnostics = run(new String(bytes, Charset.defaultCharset()));
+        }
 
         // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
+        if (diagnostics.hadError()) System.exit(65);
+
+        if (diagnostics.hadRuntimeError()) System.exit(70);
+    }
+
+    // Parse, and optimize with -Dlox.optimize, a script into a .loxc file that runFile can load without parsing
+    private static void compile(String path, String output) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        Diagnostics diagnostics = new Diagnostics(System.err);
+        Program program = engine.parse(new String(bytes, Charset.defaultCharset()), 1, diagnostics);
+        if (diagnostics.hadError()) System.exit(65);
+
+        // A very deep tree is written as it is, the optimizer would recurse all the way down it.
+        Expr expression = program.expression();
+        if (optimize && !program.isDeep()) expression = new Optimizer().optimize(expression);
+
+        if (output == null) {
+            int extension = path.lastIndexOf('.');
+            output = (extension > path.lastIndexOf('/') ? path.substring(0, extension) : path) + COMPILED;
+        }
+        Loxc.write(expression, Paths.get(output));
+    }
+
+    // Evaluate every line of a file as an independent expression, in parallel
+    private static void runBatch(String path) throws IOException {
+        int status = new Batch(engine, System.out, System.err).run(Paths.get(path));
+        if (status != 0) System.exit(status);
+    }
 
-        if (hadRuntimeError) System.exit(70);
+    // Evaluate expressions sent over a Unix domain socket until the process is stopped
+    private static void serve(String socket) throws IOException {
+        try {
+            new Server(engine, Paths.get(socket), System.err).run();
+        } catch (BindException inUse) {
+            System.err.println("[server] " + inUse.getMessage());
+            System.exit(74);
+        }
+    }
+
+    // Evaluate every line of a script, or of stdin, on a server started with --serve
+    private static void runClient(String socket, String path) throws IOException {
+        int status;
+        try (Client client = new Client(Paths.get(socket));
+             BufferedReader reader = path == null
+                     ? new BufferedReader(new InputStreamReader(System.in))
+                     : Files.newBufferedReader(Paths.get(path), Charset.defaultCharset())) {
+            status = client.run(reader, System.out, System.err);
+        }
+        if (status != 0) System.exit(status);
     }
 
     // REPL
@@ -49,53 +151,31 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
+            // Every line gets fresh diagnostics: if the user makes a mistake, it shouldn’t kill their entire session.
             run(line);
-
-            // If the user makes a mistake, it shouldn’t kill their entire session.
-            hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
-        Expr expression = parser.parse();
+    static Diagnostics run(String source) {
+        Diagnostics diagnostics = new Diagnostics(System.err);
+        Program program = engine.compile(source, 1, diagnostics, System.err);
 
         // Stop if there was a syntax error.
-        if (hadError) return;
-
-        // Printing the AST
-        System.out.println(new AstPrinter().print(expression));
-
-        // Interpreting and evaluating the AST
-        interpreter.interpret(expression);
+        if (diagnostics.hadError()) return diagnostics;
 
+        run(program, diagnostics);
+        return diagnostics;
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    private static void report(int line, String where,
-                               String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
-
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
-        }
-    }
+    private static void run(Program program, Diagnostics diagnostics) {
+        // Printing the AST
+        Phase.Span span = Phase.PRINT.start();
+        String printed = new AstPrinter().print(program.parsed());
+        if (span != null) span.end(0, 0, NodeCounter.count(program.parsed()));
+        System.out.println(printed);
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        // Interpreting and evaluating the AST
+        Result result = engine.execute(program, diagnostics);
+        if (result.succeeded()) System.out.println(result.text());
     }
-}
\ No newline at end of file
+}
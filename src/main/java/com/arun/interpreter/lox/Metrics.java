@@ -0,0 +1,140 @@
+package com.arun.interpreter.lox;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process metrics for every {@link Phase}: how often it ran, what it processed and a histogram of how long it
+ * took. Off by default, turn it on with -Dlox.metrics=true. All updates are lock free, any number of threads can
+ * record at once.
+ *
+ *   Metrics.latency(Phase.EVALUATE).percentile(0.99)
+ *   System.err.println(Metrics.report());
+ */
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("lox.metrics");
+
+    private static final Map<Phase, PhaseMetrics> PHASES = new EnumMap<>(Phase.class);
+
+    static {
+        for (Phase phase : Phase.values()) PHASES.put(phase, new PhaseMetrics());
+    }
+
+    private Metrics() {}
+
+    // Counters and latencies of one phase.
+    private static final class PhaseMetrics {
+        final LongAdder sourceSize = new LongAdder();
+        final LongAdder tokens = new LongAdder();
+        final LongAdder nodes = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final Histogram latency = new Histogram();
+    }
+
+    static void record(Phase phase, long nanos, long sourceSize, long tokens, long nodes, long allocatedBytes) {
+        PhaseMetrics metrics = PHASES.get(phase);
+        metrics.sourceSize.add(sourceSize);
+        metrics.tokens.add(tokens);
+        metrics.nodes.add(nodes);
+        metrics.allocatedBytes.add(allocatedBytes);
+        metrics.latency.record(nanos);
+    }
+
+    /** Time spent in a phase, in nanoseconds. */
+    public static Histogram latency(Phase phase) {
+        return PHASES.get(phase).latency;
+    }
+
+    /** Number of times a phase ran. */
+    public static long count(Phase phase) {
+        return latency(phase).count();
+    }
+
+    public static long sourceSize(Phase phase) {
+        return PHASES.get(phase).sourceSize.sum();
+    }
+
+    public static long tokens(Phase phase) {
+        return PHASES.get(phase).tokens.sum();
+    }
+
+    public static long nodes(Phase phase) {
+        return PHASES.get(phase).nodes.sum();
+    }
+
+    public static long allocatedBytes(Phase phase) {
+        return PHASES.get(phase).allocatedBytes.sum();
+    }
+
+    public static void reset() {
+        for (Phase phase : Phase.values()) PHASES.put(phase, new PhaseMetrics());
+    }
+
+    /** One line per phase that ran, eg: EVALUATE count=100 p50=1.2us p99=8.5us max=20.1us ... */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            Histogram latency = latency(phase);
+            if (latency.count() == 0) continue;
+
+            report.append(String.format("%-8s count=%d p50=%s p99=%s max=%s mean=%s chars=%d tokens=%d nodes=%d allocated=%dB%n",
+                    phase, latency.count(), micros(latency.percentile(0.5)), micros(latency.percentile(0.99)),
+                    micros(latency.max()), micros(latency.mean()), sourceSize(phase), tokens(phase), nodes(phase),
+                    allocatedBytes(phase)));
+        }
+        return report.toString();
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1fus", nanos / 1000);
+    }
+
+    /**
+     * A latency histogram with power of two buckets: bucket i counts values below 2^i. Recording is a couple of
+     * atomic adds, and percentiles are accurate to within a factor of two, which is plenty to spot a spike.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double)sum.sum() / n;
+        }
+
+        /** Upper bound of the bucket holding the given fraction of the values, eg: 0.99 for the p99. */
+        public long percentile(double fraction) {
+            long n = count();
+            if (n == 0) return 0;
+
+            long rank = (long)Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(i == 63 ? Long.MAX_VALUE : (1L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+}
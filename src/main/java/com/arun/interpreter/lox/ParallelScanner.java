@@ -0,0 +1,169 @@
+package com.arun.interpreter.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Scans a large source in chunks, in parallel on the common fork join pool, with exactly the tokens and errors a
+ * single {@link Scanner} would produce.
+ *
+ * Chunks end right after a newline. No token spans a newline except a string literal: a comment stops before the
+ * newline and numbers, identifiers and operators never contain one. So a chunk can be scanned on its own, starting
+ * on the line given by the newlines before it, unless it begins inside a string that the previous chunk opened.
+ * That shows as the previous chunk running out in the middle of a string. A string has no escapes, so it closes at
+ * the first quote after the boundary: the chunks from the one that opened it to the one it closes in are scanned
+ * again as one, sequentially. Should that run out in a string as well, the rest of the source is scanned in one go
+ * rather than a chunk more at a time, which would scan the first of them again for every chunk a run of strings
+ * spans. Every other chunk is taken as scanned.
+ *
+ * Lexical errors are collected per chunk and reported in source order once all the chunks are done.
+ */
+class ParallelScanner {
+    // characters per chunk
+    static final int CHUNK = 1 << 20;
+
+    // Sources shorter than this are not worth splitting.
+    static final int MIN_LENGTH = 4 * CHUNK;
+
+    // With a single processor the chunks would only be scanned one after the other, plus the stitching.
+    static boolean worthIt(String source) {
+        return source.length() >= MIN_LENGTH && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    private final String source;
+    private final int line;
+    private final Diagnostics diagnostics;
+    private final int chunk;
+
+    ParallelScanner(String source, int line, Diagnostics diagnostics) {
+        this(source, line, diagnostics, CHUNK);
+    }
+
+    ParallelScanner(String source, int line, Diagnostics diagnostics, int chunk) {
+        this.source = source;
+        this.line = line;
+        this.diagnostics = diagnostics;
+        this.chunk = chunk;
+    }
+
+    // What scanning source[from, to) produced.
+    private static class Chunk {
+        final Diagnostics diagnostics = new Diagnostics();
+        boolean endsInString;
+        List<Token> tokens;
+        TokenBuffer buffer;
+    }
+
+    /** The same list of tokens as {@link Scanner#scanTokens()}. */
+    List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        for (Chunk chunk : scan(false)) {
+            // Every chunk ends with an EOF, only the last one is the real end.
+            if (!tokens.isEmpty()) tokens.remove(tokens.size() - 1);
+            tokens.addAll(chunk.tokens);
+        }
+        return tokens;
+    }
+
+    /** The same tokens as {@link Scanner#scanTokenBuffer()}. */
+    TokenBuffer scanTokenBuffer() {
+        List<Chunk> chunks = scan(true);
+
+        int size = 0;
+        for (Chunk chunk : chunks) size += chunk.buffer.size() - 1;
+
+        TokenBuffer buffer = new TokenBuffer(source, size + 1);
+        for (int i = 0; i < chunks.size(); i++) {
+            TokenBuffer part = chunks.get(i).buffer;
+            buffer.append(part, i == chunks.size() - 1 ? part.size() : part.size() - 1);
+        }
+        return buffer;
+    }
+
+    private List<Chunk> scan(boolean compact) {
+        int[] bounds = bounds();
+        int count = bounds.length - 1;
+
+        // The line each chunk starts on: every newline before it counts, in code, strings and comments alike.
+        int[] lines = new int[count];
+        IntStream.range(0, count).parallel().forEach(i -> lines[i] = newlines(bounds[i], bounds[i + 1]));
+        int first = line;
+        for (int i = 0; i < count; i++) {
+            int newlines = lines[i];
+            lines[i] = first;
+            first += newlines;
+        }
+
+        Chunk[] chunks = new Chunk[count];
+        IntStream.range(0, count).parallel().forEach(i -> chunks[i] = scan(bounds[i], bounds[i + 1], lines[i], compact));
+
+        // Stitch the chunks in order, scanning again where a string runs from one chunk into the next.
+        List<Chunk> scanned = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Chunk chunk = chunks[i];
+            int last = i;
+            if (chunk.endsInString && last + 1 < count) {
+                int close = source.indexOf('"', bounds[i + 1]);
+                last = close < 0 ? count - 1 : chunkOf(bounds, close);
+                chunk = scan(bounds[i], bounds[last + 1], lines[i], compact);
+
+                if (chunk.endsInString && last + 1 < count) {
+                    last = count - 1;
+                    chunk = scan(bounds[i], bounds[last + 1], lines[i], compact);
+                }
+            }
+
+            diagnostics.append(chunk.diagnostics);
+            scanned.add(chunk);
+            i = last;
+        }
+        return scanned;
+    }
+
+    private Chunk scan(int from, int to, int line, boolean compact) {
+        Chunk chunk = new Chunk();
+        Scanner scanner = new Scanner(source, from, to, line, chunk.diagnostics);
+        if (compact) {
+            chunk.buffer = scanner.scanTokenBuffer();
+        } else {
+            chunk.tokens = scanner.scanTokens();
+        }
+        chunk.endsInString = scanner.endsInString();
+        return chunk;
+    }
+
+    // Chunk boundaries: 0, then the first line start at or after every multiple of the chunk size, then the end.
+    private int[] bounds() {
+        int length = source.length();
+        int[] bounds = new int[length / chunk + 2];
+        int count = 1;
+        int previous = 0;
+        for (int at = chunk; at < length; at += chunk) {
+            if (at <= previous) continue;
+
+            int newline = source.indexOf('\n', at - 1);
+            if (newline < 0 || newline + 1 >= length) break;
+
+            previous = newline + 1;
+            bounds[count++] = previous;
+        }
+        bounds[count++] = length;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    // The chunk an offset falls in: the last one starting at or before it.
+    private static int chunkOf(int[] bounds, int offset) {
+        int at = Arrays.binarySearch(bounds, offset);
+        return at >= 0 ? at : -at - 2;
+    }
+
+    private int newlines(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
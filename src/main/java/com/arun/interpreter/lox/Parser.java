@@ -2,123 +2,220 @@ package com.arun.interpreter.lox;
 
 import com.arun.interpreter.lox.ast.Expr;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static com.arun.interpreter.lox.TokenType.*;
 
+/**
+ * A Pratt parser for the expression grammar, see grammar.txt.
+ *
+ * Instead of one method per precedence level, every infix operator has a binding power in a table keyed by its
+ * TokenType: the higher the power, the tighter the operator holds on to its operands. After an operand, the parser
+ * looks up the next token. An operator that binds tighter than the one waiting on the stack takes the operand as
+ * its left side; otherwise the waiting operator is complete and is reduced first. So a literal costs one table
+ * lookup, not a trip down through every precedence level, and a new operator is one more line in the table.
+ *
+ * Pending operators, unary ones and open parentheses wait on an explicit stack rather than on the Java stack,
+ * so machine generated input nested hundreds of thousands deep parses fine. The nesting is capped by maxDepth.
+ */
 public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
-
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    // Deepest nesting of parentheses and unary operators accepted by default, set with -Dlox.max.depth.
+    // Each level costs around 100 bytes of parser stack and tree.
+    static final int MAX_DEPTH = Integer.getInteger("lox.max.depth", 1 << 20);
+
+    // Binding powers, lowest first. 0 means the token is not an infix operator.
+    private static final byte NONE = 0;
+    private static final byte EQUALITY = 1;
+    private static final byte COMPARISON = 2;
+    private static final byte TERM = 3;
+    private static final byte FACTOR = 4;
+    // prefix ! and -, tighter than any infix operator
+    private static final byte UNARY = 5;
+
+    // Infix binding power of every TokenType, by ordinal. All binary operators are left associative.
+    private static final byte[] INFIX = new byte[TokenType.values().length];
+
+    static {
+        infix(BANG_EQUAL, EQUALITY);
+        infix(EQUAL_EQUAL, EQUALITY);
+        infix(GREATER, COMPARISON);
+        infix(GREATER_EQUAL, COMPARISON);
+        infix(LESS, COMPARISON);
+        infix(LESS_EQUAL, COMPARISON);
+        infix(MINUS, TERM);
+        infix(PLUS, TERM);
+        infix(SLASH, FACTOR);
+        infix(STAR, FACTOR);
     }
 
-    Expr parse() {
-        try {
-            return expression();
-        } catch (ParseError error) {
-            return null;
-        }
+    private static void infix(TokenType type, byte power) {
+        INFIX[type.ordinal()] = power;
     }
 
-    // expression     → equality ;
-    private Expr expression() {
-        return equality();
-    }
+    // What waits on the stack: an infix operator with its left operand, a prefix operator, or an open parenthesis.
+    // A group has no binding power, nothing reduces past it until its ')' shows up.
+    private static final byte BINARY = 0;
+    private static final byte PREFIX = 1;
+    private static final byte GROUP = 2;
 
-    // equality       → comparison ( ( "!=" | "==" ) comparison )* ;
-    private Expr equality() {
-        Expr expr = comparison();
+    private final TokenStream tokens;
 
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    // where syntax errors are reported
+    private final Diagnostics diagnostics;
 
-        return expr;
-    }
+    private final int maxDepth;
 
-    // comparison     → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-    private Expr comparison() {
-        Expr expr = term();
+    // The operator stack, one slot per pending operator or group.
+    private byte[] kinds = new byte[32];
+    private byte[] powers = new byte[32];
+    private Token[] operators = new Token[32];
+    // left operand of a binary operator and its height
+    private Expr[] lefts = new Expr[32];
+    private int[] leftHeights = new int[32];
+    private int sp = 0;
 
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    // Groups and unary operators currently open.
+    private int depth = 0;
+    private int height = 0;
 
-        return expr;
+    Parser(List<Token> tokens) {
+        this(new TokenStream(tokens));
     }
 
-    // term           → factor ( ( "-" | "+" ) factor )* ;
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    Parser(TokenStream tokens) {
+        this(tokens, new Diagnostics(System.err));
+    }
 
-        return expr;
+    Parser(TokenStream tokens, Diagnostics diagnostics) {
+        this(tokens, diagnostics, MAX_DEPTH);
     }
 
-    // factor         → unary ( ( "/" | "*" ) unary )* ;
-    private Expr factor() {
-        Expr expr = unary();
+    Parser(TokenStream tokens, Diagnostics diagnostics, int maxDepth) {
+        this.tokens = tokens;
+        this.diagnostics = diagnostics;
+        this.maxDepth = maxDepth;
+    }
 
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    Expr parse() {
+        try {
+            return expression();
+        } catch (ParseError error) {
+            return null;
         }
+    }
 
-        return expr;
+    /** Height of the tree the last parse() built, a literal alone is 1. */
+    int height() {
+        return height;
     }
 
-    // unary          → ( "!" | "-" ) unary | primary ;
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    private Expr expression() {
+        for (;;) {
+            // An operand: any number of prefix operators and open parentheses, then a literal.
+            Expr operand = null;
+            while (operand == null) {
+                switch (tokens.peekType()) {
+                    case BANG:
+                    case MINUS:
+                        nest();
+                        push(PREFIX, UNARY, peek(), null, 0);
+                        advance();
+                        break;
+                    case LEFT_PAREN:
+                        nest();
+                        push(GROUP, NONE, null, null, 0);
+                        advance();
+                        break;
+                    case FALSE: advance(); operand = new Expr.Literal(false); break;
+                    case TRUE: advance(); operand = new Expr.Literal(true); break;
+                    case NIL: advance(); operand = new Expr.Literal(null); break;
+                    case NUMBER:
+                    case STRING:
+                        operand = new Expr.Literal(tokens.peekLiteral());
+                        advance();
+                        break;
+                    default:
+                        throw error("Expect expression.");
+                }
+            }
+            int operandHeight = 1;
+
+            // After an operand: reduce whatever binds at least as tightly as the next operator, then either the
+            // operator takes the operand as its left side, a ')' closes a group, or the expression is over.
+            for (;;) {
+                byte power = INFIX[tokens.peekType().ordinal()];
+
+                // >= makes equal powers reduce first, which is what makes the operators left associative.
+                while (sp > 0 && kinds[sp - 1] != GROUP && powers[sp - 1] >= power) {
+                    int top = --sp;
+                    if (kinds[top] == PREFIX) {
+                        operand = new Expr.Unary(operators[top], operand);
+                        operandHeight++;
+                        depth--;
+                    } else {
+                        operand = new Expr.Binary(lefts[top], operators[top], operand);
+                        operandHeight = 1 + Math.max(leftHeights[top], operandHeight);
+                    }
+                    operators[top] = null;
+                    lefts[top] = null;
+                }
+
+                if (power != NONE) {
+                    push(BINARY, power, peek(), operand, operandHeight);
+                    advance();
+                    break;
+                }
+
+                if (sp == 0) {
+                    height = operandHeight;
+                    return operand;
+                }
+
+                // Only a group is left on top.
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                sp--;
+                depth--;
+                operand = new Expr.Grouping(operand);
+                operandHeight++;
+            }
         }
-
-        return primary();
     }
 
-    // primary        → NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" ;
-    private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+    private void push(byte kind, byte power, Token operator, Expr left, int leftHeight) {
+        if (sp == kinds.length) {
+            int capacity = sp * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            powers = Arrays.copyOf(powers, capacity);
+            operators = Arrays.copyOf(operators, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            leftHeights = Arrays.copyOf(leftHeights, capacity);
         }
+        kinds[sp] = kind;
+        powers[sp] = power;
+        operators[sp] = operator;
+        lefts[sp] = left;
+        leftHeights[sp] = leftHeight;
+        sp++;
+    }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-        throw error(peek(), "Expect expression.");
+    // Entering a group or a unary operator, the only ways the stack grows without an operand to show for it.
+    private void nest() {
+        if (++depth > maxDepth) throw error("Expression is nested too deeply.");
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if (!check(type)) throw error(message);
 
-        throw error(peek(), message);
+        advance();
     }
 
-    private ParseError error(Token token, String message) {
-        Lox.error(token.line, message);
+    // A syntax error at the current token, reported by line.
+    private ParseError error(String message) {
+        diagnostics.error(tokens.peekLine(), message);
         return new ParseError();
     }
 
@@ -128,7 +225,7 @@ public class Parser {
         while (!isAtEnd()) {
             if (previous().type == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -144,36 +241,25 @@ public class Parser {
         }
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.peekType() == type;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        tokens.advance();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.peekType() == EOF;
     }
 
+    // The current token as a Token, for operators that go into the tree.
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.previous();
     }
 }
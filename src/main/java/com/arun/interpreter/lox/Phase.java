@@ -0,0 +1,89 @@
+package com.arun.interpreter.lox;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The phases of running a piece of source. Scanning happens inside PARSE, the parser pulls tokens as it goes.
+ *
+ * Each phase is measured with a {@link Span}:
+ *
+ *   Phase.Span span = Phase.PARSE.start();
+ *   ... do the work ...
+ *   if (span != null) span.end(source.length(), tokens, nodes);
+ *
+ * start() returns null unless the phase's JFR event is being recorded or the metrics registry is on, so the
+ * cost of instrumentation when nobody is looking is one check, and the sizes are never even computed.
+ */
+public enum Phase {
+    PARSE,
+    OPTIMIZE,
+    PRINT,
+    EVALUATE;
+
+    /** Start measuring this phase, null when there is nothing to measure for. */
+    public Span start() {
+        PhaseEvent event = event();
+        if (!event.isEnabled() && !Metrics.ENABLED) return null;
+
+        event.begin();
+        return new Span(this, event);
+    }
+
+    private PhaseEvent event() {
+        switch (this) {
+            case PARSE: return new PhaseEvent.Parse();
+            case OPTIMIZE: return new PhaseEvent.Optimize();
+            case PRINT: return new PhaseEvent.Print();
+            default: return new PhaseEvent.Evaluate();
+        }
+    }
+
+    /** One measured run of a phase. */
+    public static final class Span {
+        private final Phase phase;
+        private final PhaseEvent event;
+        private final long start = System.nanoTime();
+        private final long allocatedBefore = Allocation.current();
+
+        private Span(Phase phase, PhaseEvent event) {
+            this.phase = phase;
+            this.event = event;
+        }
+
+        /** Finish the phase. Sizes that don't apply to the phase are 0. */
+        public void end(long sourceSize, long tokenCount, long nodeCount) {
+            long duration = System.nanoTime() - start;
+            long allocated = Allocation.current() - allocatedBefore;
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.sourceSize = sourceSize;
+                event.tokenCount = tokenCount;
+                event.nodeCount = nodeCount;
+                event.allocatedBytes = allocated;
+                event.commit();
+            }
+
+            if (Metrics.ENABLED) Metrics.record(phase, duration, sourceSize, tokenCount, nodeCount, allocated);
+        }
+    }
+
+    // Bytes allocated so far by the current thread, always 0 if the JVM can't tell.
+    // A holder class, so the management beans are only looked up once something is measured.
+    private static final class Allocation {
+        private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+        private static com.sun.management.ThreadMXBean threads() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+                if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) return sun;
+            }
+            return null;
+        }
+
+        static long current() {
+            return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+        }
+    }
+}
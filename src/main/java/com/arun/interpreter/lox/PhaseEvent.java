@@ -0,0 +1,58 @@
+package com.arun.interpreter.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events, one type per phase of running a piece of source. The event duration is the time
+ * spent in the phase. Every event type can be enabled and given a threshold on its own, eg:
+ *
+ *   java -XX:StartFlightRecording:filename=lox.jfr,lox.Evaluate#threshold=1ms ...
+ *
+ * When a recording is off, creating and checking an event costs next to nothing, see {@link Phase#start()}.
+ */
+@Category("Lox")
+@StackTrace(false)
+public abstract class PhaseEvent extends Event {
+    @Label("Source Size")
+    @Description("Characters in the source, 0 when the phase starts from a parsed expression")
+    @DataAmount(DataAmount.BYTES)
+    long sourceSize;
+
+    @Label("Token Count")
+    long tokenCount;
+
+    @Label("Node Count")
+    @Description("Nodes in the expression tree the phase produced or worked on")
+    long nodeCount;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the thread during the phase")
+    @DataAmount(DataAmount.BYTES)
+    long allocatedBytes;
+
+    @Name("lox.Parse")
+    @Label("Lox Scan and Parse")
+    public static class Parse extends PhaseEvent {
+    }
+
+    @Name("lox.Optimize")
+    @Label("Lox Optimize")
+    public static class Optimize extends PhaseEvent {
+    }
+
+    @Name("lox.Print")
+    @Label("Lox Print AST")
+    public static class Print extends PhaseEvent {
+    }
+
+    @Name("lox.Evaluate")
+    @Label("Lox Evaluate")
+    public static class Evaluate extends PhaseEvent {
+    }
+}
@@ -0,0 +1,81 @@
+package com.arun.interpreter.lox;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.arun.interpreter.lox.ast.Chunk;
+import com.arun.interpreter.lox.ast.ClosureCompiler;
+import com.arun.interpreter.lox.ast.Expr;
+import com.arun.interpreter.lox.ast.FlatTree;
+import com.arun.interpreter.lox.ast.HandleCompiler;
+import com.arun.interpreter.lox.ast.Jit;
+import com.arun.interpreter.lox.ast.Node;
+
+/**
+ * An expression compiled by an {@link Engine}, ready to be executed any number of times, from any number of threads.
+ *
+ * Everything the engine worked out about the tree travels with it rather than living in maps on the engine: whether
+ * it is too deep for the recursive passes, which of its nodes are shared after interning, and what the backends keep
+ * per expression. The {@link ExpressionCache} holds programs, so an expression that comes out of the cache brings
+ * all of it along, and evaluating one never takes a lock.
+ *
+ * What a backend compiles the tree into is built the first time the program runs on it and kept for every run after.
+ * Two threads that get there at the same time may both build it, either copy is as good as the other.
+ */
+public final class Program {
+    final Expr expression;
+    // The tree as the parser built it, what Lox prints. The same tree as expression unless the engine optimized it.
+    final Expr parsed;
+    // Line the source was parsed at, the lines of the tree's tokens count from it. Run at another line, eg: the same
+    // text found in the cache for a later line of a batch, runtime errors are moved by the difference.
+    final int line;
+    // Too tall for the recursive passes, see Engine.MAX_RECURSIVE_HEIGHT. It is only ever evaluated iteratively.
+    final boolean deep;
+    // nodes with more than one parent after interning, empty if the tree wasn't interned
+    final Set<Expr> shared;
+    // evaluation count and compiled class for the jit backend
+    final Jit.Site site = new Jit.Site();
+
+    // bytecode for the vm backend
+    volatile Chunk chunk;
+    // Set when the tree has more literals than a chunk can hold, the vm backend hands it to the tree walker instead.
+    volatile boolean tooManyConstants;
+    // Node tree for the nodes backend, empty while a thread is running it, see Engine.evaluate().
+    final AtomicReference<Node.Root> nodes = new AtomicReference<>();
+    // method handle tree for the handles backend, bound into a class of its own so HotSpot can inline it
+    volatile HandleCompiler.Compiled handle;
+    // closure tree for the closures backend
+    volatile ClosureCompiler.Closure closure;
+    // post order arrays for the flat backend
+    volatile FlatTree flat;
+
+    Program(Expr expression, int line, boolean deep) {
+        this(expression, expression, line, deep, Collections.emptySet());
+    }
+
+    Program(Expr expression, Expr parsed, int line, boolean deep, Set<Expr> shared) {
+        this.expression = expression;
+        this.parsed = parsed;
+        this.line = line;
+        this.deep = deep;
+        this.shared = shared;
+    }
+
+    public Expr expression() {
+        return expression;
+    }
+
+    /** The expression before the engine optimized it, the same as {@link #expression()} if it didn't. */
+    public Expr parsed() {
+        return parsed;
+    }
+
+    /**
+     * True for a tree too deep for the recursive passes: the optimizer, the compiling backends or anything else that
+     * walks it with Java recursion.
+     */
+    public boolean isDeep() {
+        return deep;
+    }
+}
@@ -0,0 +1,83 @@
+package com.arun.interpreter.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frames the {@link Server} and the {@link Client} exchange over a socket. Everything is big endian, a string is
+ * a u4 byte length followed by the string in UTF-8.
+ *
+ *   request   u1 kind, then for
+ *               EVALUATE    u4 line, string   the source of an expression and the line it starts on
+ *               STATS       nothing
+ *   response  u1 status     0, or the exit code runFile would use: 65 for a syntax error, 70 for a runtime error
+ *                           or for an internal error in the server while evaluating
+ *             string        the value as Lox prints it, or the statistics, empty when the evaluation failed
+ *             u4 count      number of messages that follow
+ *             string...     error messages, in the order they were reported
+ *
+ * A connection carries any number of requests, one after the other, each answered before the next one is read.
+ */
+final class Protocol {
+    static final byte EVALUATE = 0;
+    static final byte STATS = 1;
+
+    static final int OK = 0;
+    static final int SYNTAX_ERROR = 65;
+    static final int RUNTIME_ERROR = 70;
+
+    // Longest string accepted, so a bad frame can't make the other side allocate gigabytes.
+    static final int MAX_LENGTH = 64 << 20;
+
+    private Protocol() {}
+
+    static final class Response {
+        final int status;
+        final String text;
+        final List<String> messages;
+
+        Response(int status, String text, List<String> messages) {
+            this.status = status;
+            this.text = text;
+            this.messages = messages;
+        }
+    }
+
+    static void writeResponse(DataOutputStream out, Response response) throws IOException {
+        out.writeByte(response.status);
+        writeString(out, response.text);
+        out.writeInt(response.messages.size());
+        for (String message : response.messages) writeString(out, message);
+        out.flush();
+    }
+
+    static Response readResponse(DataInputStream in) throws IOException {
+        int status = in.readUnsignedByte();
+        String text = readString(in);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LENGTH) throw new IOException("Bad message count " + count + ".");
+
+        List<String> messages = new ArrayList<>(Math.min(count, 16));
+        for (int i = 0; i < count; i++) messages.add(readString(in));
+        return new Response(status, text, messages);
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) throw new IOException("Bad string length " + length + ".");
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
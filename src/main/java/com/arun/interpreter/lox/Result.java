@@ -0,0 +1,38 @@
+package com.arun.interpreter.lox;
+
+import com.arun.interpreter.lox.ast.Interpreter;
+import com.arun.interpreter.lox.ast.Rope;
+
+/**
+ * The outcome of one evaluation: the value it produced, if any, and everything that was reported on the way.
+ */
+public class Result {
+    private final Object value;
+    private final Diagnostics diagnostics;
+
+    Result(Object value, Diagnostics diagnostics) {
+        this.value = value;
+        this.diagnostics = diagnostics;
+    }
+
+    /** True if the source scanned, parsed and evaluated without any error. */
+    public boolean succeeded() {
+        return !diagnostics.hadError() && !diagnostics.hadRuntimeError();
+    }
+
+    /** The value of the expression, null if it is nil or if the evaluation failed. */
+    public Object value() {
+        // Strings built by + are ropes inside the evaluator, hand them out as plain Strings.
+        if (value instanceof Rope) return value.toString();
+        return value;
+    }
+
+    /** The value as Lox prints it. */
+    public String text() {
+        return Interpreter.stringify(value);
+    }
+
+    public Diagnostics diagnostics() {
+        return diagnostics;
+    }
+}
@@ -1,9 +1,7 @@
 package com.arun.interpreter.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.arun.interpreter.lox.TokenType.*;
 
@@ -11,6 +9,9 @@ class Scanner {
     // the raw source code
     private final String source;
 
+    // where scanning stops, the end of the source unless only a range of it is scanned
+    private final int end;
+
     /** keep track of where scanner is in the source code */
     // points to the first character in the lexeme being scanned
     private int start = 0;
@@ -19,51 +20,92 @@ class Scanner {
     private int current = 0;
 
     // tracks what source line current is on so we can produce tokens that know their location.
-    private int line = 1;
-
-    private final List<Token> tokens = new ArrayList<>();
-
-    // reserved keywords
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
+    private int line;
+
+    // token produced by the last call to scanToken, if any
+    private Token next = null;
+
+    // when scanning into a compact buffer, tokens are appended here instead
+    private TokenBuffer buffer = null;
+
+    // where lexical errors are reported
+    private final Diagnostics diagnostics;
+
+    // set when the end was reached inside a string literal
+    private boolean endsInString = false;
 
     Scanner(String source) {
+        this(source, 1, new Diagnostics(System.err));
+    }
+
+    // Scan a piece of a larger file that begins on the given line.
+    Scanner(String source, int line, Diagnostics diagnostics) {
+        this(source, 0, source.length(), line, diagnostics);
+    }
+
+    // Scan source[start, end) only, start being on the given line. Token positions stay offsets into the whole source.
+    Scanner(String source, int start, int end, int line, Diagnostics diagnostics) {
         this.source = source;
+        this.start = start;
+        this.current = start;
+        this.end = end;
+        this.line = line;
+        this.diagnostics = diagnostics;
     }
 
     List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        for (;;) {
+            Token token = nextToken();
+            tokens.add(token);
+            if (token.type == EOF) return tokens;
+        }
+    }
+
+    /**
+     * Scan the whole source into a compact {@link TokenBuffer} instead of a list of Token objects.
+     */
+    TokenBuffer scanTokenBuffer() {
+        buffer = new TokenBuffer(source, (end - current) / 8);
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        buffer.add(EOF, current, 0, line);
+        return buffer;
+    }
+
+    /**
+     * Scan just enough of the source to produce the next token, so a parser can pull tokens on demand.
+     * Whitespace and comments are skipped, and lexical errors are reported as they are reached.
+     * Once the source is exhausted every call returns an EOF token.
+     */
+    Token nextToken() {
+        while (!isAtEnd()) {
+            // We are at the beginning of the next lexeme.
+            start = current;
+            scanToken();
+
+            if (next != null) {
+                Token token = next;
+                next = null;
+                return token;
+            }
+        }
+
+        return new Token(EOF, "", null, line);
     }
 
     // have we consumed all characters
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
+    }
+
+    // True if the source ran out in the middle of a string literal, which was then reported as unterminated.
+    boolean endsInString() {
+        return endsInString;
     }
 
 
@@ -123,7 +165,7 @@ class Scanner {
                     // assuming any lexeme starting with a letter or underscore is an identifier.
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    diagnostics.error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -135,13 +177,27 @@ class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
+        if (buffer != null) {
+            // Compact mode: only remember where the lexeme is, its text and value are materialized on demand.
+            buffer.add(type, start, current - start, line);
+            return;
+        }
 
-    // grabs the text of the current lexeme and creates a new token for it
-    private void addToken(TokenType type, Object literal) {
+        // grabs the text of the current lexeme and creates a new token for it
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        next = new Token(type, text, literal(source, type, start, current), line);
+    }
+
+    // The value of the string or number literal in source[start, end), null for any other token.
+    static Object literal(String source, TokenType type, int start, int end) {
+        switch (type) {
+            case STRING:
+                // Trim the surrounding quotes and get the actual string value
+                return source.substring(start + 1, end - 1);
+            case NUMBER:
+                return Double.parseDouble(source.substring(start, end));
+        }
+        return null;
     }
 
     // look at the second character; only consume if it matches expected
@@ -172,16 +228,15 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            endsInString = true;
+            diagnostics.error(line, "Unterminated string.");
             return;
         }
 
         // The closing ".
         advance();
 
-        // Trim the surrounding quotes and get the actual string value
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     private boolean isDigit(char c) {
@@ -203,13 +258,12 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     // Looking past the decimal point requires a second character of lookahead since we don’t want to consume the . until we’re sure there is a digit after it.
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -225,13 +279,58 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            // not a reserved keyword, mark as identifier
-            type = IDENTIFIER;
+        addToken(identifierType());
+    }
+
+    /**
+     * Classify the identifier in source[start, current) without copying it out of the source.
+     * This is a hand written trie over the reserved words: switch on the first character (and the second one
+     * where several keywords share the first), then compare the rest of the lexeme in place.
+     * Anything that isn't a reserved word is a user defined identifier.
+     */
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+
+        // not a reserved keyword, mark as identifier
+        return IDENTIFIER;
+    }
+
+    // The lexeme is the keyword if it has the right length and the rest of it, from offset on, matches.
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() &&
+                source.regionMatches(start + offset, rest, 0, rest.length())) {
+            return type;
         }
-        addToken(type);
+        return IDENTIFIER;
     }
 
     private boolean isAlpha(char c) {
@@ -0,0 +1,174 @@
+package com.arun.interpreter.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server mode: keeps one warm {@link Engine} resident and evaluates expressions sent over a Unix domain socket, so a
+ * tool that evaluates many expressions pays JVM startup once and runs on JIT compiled code after the first few
+ * thousand requests. See {@link Protocol} for the frames and {@link Client} for the other end.
+ *
+ * Every connection is served on its own virtual thread, a blocked read costs no platform thread. Every request gets
+ * its own {@link Diagnostics}, so an error in one request never shows up in another, on the same connection or not.
+ *
+ * The time from reading a request to writing its response is kept in a histogram, a STATS request returns the
+ * p50 and p99. They are also printed to stderr when the server shuts down.
+ */
+class Server {
+    private final Engine engine;
+    private final Path path;
+    private final PrintStream log;
+
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private final LongAdder syntaxErrors = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    Server(Engine engine, Path path, PrintStream log) {
+        this.engine = engine;
+        this.path = path;
+        this.log = log;
+    }
+
+    /** Listen on the socket until the process is stopped. */
+    void run() throws IOException {
+        removeStaleSocket();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(path));
+            // The socket file this server made, a newer server may have replaced it by the time this one stops.
+            Object socket = fileKey();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                log.print(stats());
+                try {
+                    if (socket != null && socket.equals(fileKey())) Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                    // Nothing to do about it, the next server finds nobody listening and deletes it before binding.
+                }
+            }));
+            log.println("[server] listening on " + path);
+
+            Thread.Builder threads = Thread.ofVirtual().name("lox-connection-", 1);
+            for (;;) {
+                SocketChannel channel = server.accept();
+                threads.start(() -> serve(channel));
+            }
+        }
+    }
+
+    // A socket file left behind by a server that was killed would make bind fail, so one nobody answers on is deleted.
+    // Anything else at the path is left alone: a file that isn't a socket, or the socket of a server still running.
+    private void removeStaleSocket() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException none) {
+            return;
+        }
+        if (!attributes.isOther()) throw new BindException("Address in use: " + path + " exists and is not a socket.");
+
+        try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            throw new BindException("Address in use: a server is already listening on " + path + ".");
+        } catch (ConnectException refused) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // What identifies the file at the path, eg: its inode, null if there is none.
+    private Object fileKey() throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (NoSuchFileException none) {
+            return null;
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        connections.incrementAndGet();
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+            for (;;) {
+                int kind;
+                try {
+                    kind = in.readUnsignedByte();
+                } catch (EOFException closed) {
+                    return;
+                }
+
+                switch (kind) {
+                    case Protocol.EVALUATE: {
+                        int line = in.readInt();
+                        String source = Protocol.readString(in);
+                        long start = System.nanoTime();
+                        Protocol.writeResponse(out, evaluate(source, line));
+                        latency.record(System.nanoTime() - start);
+                        break;
+                    }
+                    case Protocol.STATS:
+                        Protocol.writeResponse(out, new Protocol.Response(Protocol.OK, stats(), Collections.emptyList()));
+                        break;
+                    default:
+                        throw new IOException("Unknown request kind " + kind + ".");
+                }
+            }
+        } catch (IOException error) {
+            log.println("[server] connection dropped: " + error.getMessage());
+        } finally {
+            connections.decrementAndGet();
+        }
+    }
+
+    private Protocol.Response evaluate(String source, int line) {
+        Diagnostics diagnostics = new Diagnostics();
+        Result result;
+        try {
+            result = engine.evaluate(source, line, diagnostics);
+        } catch (RuntimeException error) {
+            // A bug in the engine fails the request it happened in, the connection and the server carry on.
+            log.println("[server] evaluation failed: " + error);
+            runtimeErrors.increment();
+            return new Protocol.Response(Protocol.RUNTIME_ERROR, "",
+                    Collections.singletonList("Internal error: " + error + "\n[line " + line + "]"));
+        }
+
+        int status = Protocol.OK;
+        if (diagnostics.hadError()) {
+            status = Protocol.SYNTAX_ERROR;
+            syntaxErrors.increment();
+        } else if (diagnostics.hadRuntimeError()) {
+            status = Protocol.RUNTIME_ERROR;
+            runtimeErrors.increment();
+        }
+        return new Protocol.Response(status, result.succeeded() ? result.text() : "", diagnostics.messages());
+    }
+
+    // eg: requests=1000 syntax-errors=2 runtime-errors=5 connections=1 p50=16.4us p99=131.1us max=2100.0us
+    String stats() {
+        return String.format("[server] requests=%d syntax-errors=%d runtime-errors=%d connections=%d " +
+                        "p50=%.1fus p99=%.1fus max=%.1fus%n",
+                latency.count(), syntaxErrors.sum(), runtimeErrors.sum(), connections.get(),
+                latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.max() / 1e3);
+    }
+}
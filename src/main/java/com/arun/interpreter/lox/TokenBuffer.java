@@ -0,0 +1,133 @@
+package com.arun.interpreter.lox;
+
+import java.util.Arrays;
+
+import static com.arun.interpreter.lox.TokenType.*;
+
+/**
+ * A compact, struct of arrays representation of a scanned source.
+ * Instead of a Token object and a lexeme String per token, each token is one slot in parallel primitive arrays:
+ * its type, where its lexeme starts, how long it is and its line. That is 13 bytes per token, laid out
+ * contiguously in memory.
+ *
+ * Lexemes and literal values are only materialized when somebody asks for them. Punctuation and keywords always
+ * have the same text, so those lexemes come from a shared table and are never copied out of the source.
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // lexeme of every token type whose text never changes, null for identifiers, strings and numbers
+    private static final String[] FIXED_LEXEMES = new String[TYPES.length];
+
+    static {
+        fixed(LEFT_PAREN, "(");   fixed(RIGHT_PAREN, ")");
+        fixed(LEFT_BRACE, "{");   fixed(RIGHT_BRACE, "}");
+        fixed(COMMA, ",");        fixed(DOT, ".");
+        fixed(MINUS, "-");        fixed(PLUS, "+");
+        fixed(SEMICOLON, ";");    fixed(SLASH, "/");
+        fixed(STAR, "*");
+        fixed(BANG, "!");         fixed(BANG_EQUAL, "!=");
+        fixed(EQUAL, "=");        fixed(EQUAL_EQUAL, "==");
+        fixed(GREATER, ">");      fixed(GREATER_EQUAL, ">=");
+        fixed(LESS, "<");         fixed(LESS_EQUAL, "<=");
+        fixed(AND, "and");        fixed(CLASS, "class");
+        fixed(ELSE, "else");      fixed(FALSE, "false");
+        fixed(FUN, "fun");        fixed(FOR, "for");
+        fixed(IF, "if");          fixed(NIL, "nil");
+        fixed(OR, "or");          fixed(PRINT, "print");
+        fixed(RETURN, "return");  fixed(SUPER, "super");
+        fixed(THIS, "this");      fixed(TRUE, "true");
+        fixed(VAR, "var");        fixed(WHILE, "while");
+        fixed(EOF, "");
+    }
+
+    private static void fixed(TokenType type, String lexeme) {
+        FIXED_LEXEMES[type.ordinal()] = lexeme;
+    }
+
+    /** The text every token of a type has, eg: "+" for PLUS. Null for identifiers, strings and numbers. */
+    public static String fixedLexeme(TokenType type) {
+        return FIXED_LEXEMES[type.ordinal()];
+    }
+
+    private final String source;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+
+    TokenBuffer(String source) {
+        // A rough guess at the number of tokens, the arrays grow if it is too small.
+        this(source, source.length() / 8);
+    }
+
+    TokenBuffer(String source, int capacity) {
+        this.source = source;
+
+        capacity = Math.max(16, capacity);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    // Append the first count tokens of another buffer over the same source.
+    void append(TokenBuffer other, int count) {
+        if (size + count > types.length) {
+            int capacity = Math.max(size * 2, size + count);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        System.arraycopy(other.types, 0, types, size, count);
+        System.arraycopy(other.starts, 0, starts, size, count);
+        System.arraycopy(other.lengths, 0, lengths, size, count);
+        System.arraycopy(other.lines, 0, lines, size, count);
+        size += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    public String lexeme(int index) {
+        String fixed = FIXED_LEXEMES[types[index]];
+        if (fixed != null) return fixed;
+        return source.substring(starts[index], starts[index] + lengths[index]);
+    }
+
+    public Object literal(int index) {
+        return Scanner.literal(source, type(index), starts[index], starts[index] + lengths[index]);
+    }
+
+    /** Materialize a full Token, eg: for the parser or for error reporting. */
+    public Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), lines[index]);
+    }
+}
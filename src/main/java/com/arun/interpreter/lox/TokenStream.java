@@ -0,0 +1,107 @@
+package com.arun.interpreter.lox;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Tokens pulled on demand by the {@link Parser}.
+ * Only the current token and the one before it are kept, so memory doesn't grow with the size of the source
+ * and the scanner only runs as far as the parser has got.
+ *
+ * Over a {@link TokenBuffer} the tokens are read in place: the parser looks at types, lines and literal values
+ * straight from the buffer, and a Token is only built for what ends up in the tree as an operator, or when it asks
+ * for one with {@link #peek()}.
+ */
+class TokenStream {
+    // where tokens come from one at a time, null when reading a buffer
+    private final Supplier<Token> source;
+
+    // the last consumed token
+    private Token previous = null;
+
+    // the token being looked at, scanned lazily on the first peek
+    private Token current = null;
+
+    // tokens fetched from the source so far
+    private int count = 0;
+
+    // scanned tokens read in place, null when reading from a source
+    private final TokenBuffer buffer;
+    // index of the token being looked at in the buffer
+    private int index = 0;
+
+    TokenStream(Scanner scanner) {
+        this.source = scanner::nextToken;
+        this.buffer = null;
+    }
+
+    // Tokens that were already scanned, the list must end with an EOF token.
+    TokenStream(List<Token> tokens) {
+        Iterator<Token> iterator = tokens.iterator();
+        this.source = iterator::next;
+        this.buffer = null;
+    }
+
+    // Tokens in a compact buffer, which ends with an EOF token.
+    TokenStream(TokenBuffer buffer) {
+        this.source = null;
+        this.buffer = buffer;
+    }
+
+    // The current token, built from the buffer on every call when reading one.
+    Token peek() {
+        if (buffer != null) return buffer.token(index);
+
+        if (current == null) {
+            current = source.get();
+            count++;
+        }
+        return current;
+    }
+
+    TokenType peekType() {
+        return buffer != null ? buffer.type(index) : peek().type;
+    }
+
+    int peekLine() {
+        return buffer != null ? buffer.line(index) : peek().line;
+    }
+
+    // Value of the current token if it is a number or a string.
+    Object peekLiteral() {
+        return buffer != null ? buffer.literal(index) : peek().literal;
+    }
+
+    // Number of tokens read so far, EOF included once it has been reached.
+    int count() {
+        return buffer != null ? index + 1 : count;
+    }
+
+    Token previous() {
+        if (buffer != null) return index == 0 ? null : buffer.token(index - 1);
+        return previous;
+    }
+
+    // Consume the current token. EOF is never consumed, there is nothing after it.
+    void advance() {
+        if (peekType() == TokenType.EOF) return;
+
+        if (buffer != null) {
+            index++;
+            return;
+        }
+        previous = current;
+        current = null;
+    }
+
+    // Scan whatever is left after the parser is done, so lexical errors later in the source are still reported.
+    // A buffer was scanned up front, its errors have been reported already.
+    void drain() {
+        if (buffer != null) {
+            index = buffer.size() - 1;
+            return;
+        }
+        while (peek().type != TokenType.EOF) advance();
+    }
+}
@@ -1,46 +1,68 @@
 package com.arun.interpreter.lox.ast;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import com.arun.interpreter.lox.Token;
 import com.arun.interpreter.lox.TokenType;
 
-public class AstPrinter implements Visitor<String> {
+/**
+ * Prints an expression in prefix form, eg: (* (- 123) (group 45.67))
+ *
+ * Printing doesn't recurse, so it works on trees of any depth: the parts still to print, nodes and the text
+ * between them, wait on an explicit stack, and visiting a node pushes its parts.
+ */
+public class AstPrinter implements Visitor<Void> {
+    private final Deque<Object> pending = new ArrayDeque<>();
+    private StringBuilder builder;
 
     public String print(Expr expr) {
-        return expr.accept(this);
+        builder = new StringBuilder();
+        pending.push(expr);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof Expr) {
+                ((Expr)next).accept(this);
+            } else {
+                builder.append((String)next);
+            }
+        }
+        return builder.toString();
     }
 
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return null;
     }
 
     @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        parenthesize("group", expr.expression);
+        return null;
     }
 
     @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        builder.append(expr.value == null ? "nil" : expr.value.toString());
+        return null;
     }
 
     @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        parenthesize(expr.operator.lexeme, expr.right);
+        return null;
     }
 
-    private String parenthesize(String name, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
-
+    // Prints "(name" now and queues " expr" for every expression and then ")", last pushed is printed first.
+    private void parenthesize(String name, Expr... exprs) {
         builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
-        }
-        builder.append(")");
 
-        return builder.toString();
+        pending.push(")");
+        for (int i = exprs.length - 1; i >= 0; i--) {
+            pending.push(exprs[i]);
+            pending.push(" ");
+        }
     }
 
     public static void main(String[] args) {
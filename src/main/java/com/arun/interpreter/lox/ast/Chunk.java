@@ -0,0 +1,113 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.arun.interpreter.lox.Token;
+
+/**
+ * A chunk of bytecode produced by the {@link Compiler}.
+ * The code is a flat array of opcodes and their operands, literal values live in the constant pool.
+ * For every opcode we also remember the operator token it came from, so the VM can report
+ * runtime errors with the same token (and line) as the tree walk interpreter.
+ */
+public class Chunk {
+    // Opcodes
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_EQUAL = 4;
+    static final byte OP_NOT_EQUAL = 5;
+    static final byte OP_GREATER = 6;
+    static final byte OP_GREATER_EQUAL = 7;
+    static final byte OP_LESS = 8;
+    static final byte OP_LESS_EQUAL = 9;
+    static final byte OP_ADD = 10;
+    static final byte OP_SUBTRACT = 11;
+    static final byte OP_MULTIPLY = 12;
+    static final byte OP_DIVIDE = 13;
+    static final byte OP_NOT = 14;
+    static final byte OP_NEGATE = 15;
+    static final byte OP_RETURN = 16;
+
+    byte[] code = new byte[8];
+    Token[] tokens = new Token[8];
+    int count = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    Object[] constants;
+
+    // deepest the operand stack gets while running this chunk
+    int maxStack = 0;
+
+    void write(byte b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = b;
+        tokens[count] = token;
+        count++;
+    }
+
+    // Constant indexes are written as two bytes, so a chunk can hold up to 65536 constants.
+    int addConstant(Object value) {
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    // Trim the code to its final size and freeze the constant pool.
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = constantList.toArray();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Human readable listing of the chunk, one instruction per line. */
+    public String disassemble() {
+        StringBuilder builder = new StringBuilder();
+        int offset = 0;
+        while (offset < count) {
+            builder.append(String.format("%04d ", offset));
+            byte op = code[offset];
+            if (op == OP_CONSTANT) {
+                int index = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                builder.append("OP_CONSTANT ").append(index).append(" '")
+                        .append(Interpreter.stringify(constants[index])).append("'\n");
+                offset += 3;
+            } else {
+                builder.append(name(op)).append("\n");
+                offset++;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String name(byte op) {
+        switch (op) {
+            case OP_NIL: return "OP_NIL";
+            case OP_TRUE: return "OP_TRUE";
+            case OP_FALSE: return "OP_FALSE";
+            case OP_EQUAL: return "OP_EQUAL";
+            case OP_NOT_EQUAL: return "OP_NOT_EQUAL";
+            case OP_GREATER: return "OP_GREATER";
+            case OP_GREATER_EQUAL: return "OP_GREATER_EQUAL";
+            case OP_LESS: return "OP_LESS";
+            case OP_LESS_EQUAL: return "OP_LESS_EQUAL";
+            case OP_ADD: return "OP_ADD";
+            case OP_SUBTRACT: return "OP_SUBTRACT";
+            case OP_MULTIPLY: return "OP_MULTIPLY";
+            case OP_DIVIDE: return "OP_DIVIDE";
+            case OP_NOT: return "OP_NOT";
+            case OP_NEGATE: return "OP_NEGATE";
+            case OP_RETURN: return "OP_RETURN";
+        }
+        return "Unknown opcode " + op;
+    }
+}
@@ -0,0 +1,138 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.RuntimeError;
+import com.arun.interpreter.lox.Token;
+
+/**
+ * Compiles an expression tree into a tree of closures.
+ *
+ * The tree walk interpreter switches on the operator of a node every time it evaluates it, even though the operator
+ * of a node never changes. Here that switch runs once, at compile time, and picks a lambda made for the operator that
+ * captures the closures of its operands. Evaluating is then just calling down the tree and doing the arithmetic and
+ * the type checks, with the same values and RuntimeErrors as the {@link Interpreter}.
+ *
+ * A compiled closure can be evaluated any number of times and from any thread.
+ */
+public class ClosureCompiler implements Visitor<ClosureCompiler.Closure> {
+
+    @FunctionalInterface
+    public interface Closure {
+        Object evaluate();
+    }
+
+    public Closure compile(Expr expression) {
+        return expression.accept(this);
+    }
+
+    @Override
+    public Closure visitBinaryExpr(Expr.Binary expr) {
+        Closure left = expr.left.accept(this);
+        Closure right = expr.right.accept(this);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case MINUS:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a - (double)b;
+                };
+            case SLASH:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a / (double)b;
+                };
+            case STAR:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a * (double)b;
+                };
+            case PLUS:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double)a + (double)b;
+                    }
+                    if (Interpreter.isString(a) && Interpreter.isString(b)) {
+                        return Interpreter.concat(a, b);
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                };
+            case GREATER:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a > (double)b;
+                };
+            case GREATER_EQUAL:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a >= (double)b;
+                };
+            case LESS:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a < (double)b;
+                };
+            case LESS_EQUAL:
+                return () -> {
+                    Object a = left.evaluate();
+                    Object b = right.evaluate();
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double)a <= (double)b;
+                };
+            case BANG_EQUAL:
+                return () -> {
+                    Object a = left.evaluate();
+                    return !Interpreter.isEqual(a, right.evaluate());
+                };
+            case EQUAL_EQUAL:
+                return () -> {
+                    Object a = left.evaluate();
+                    return Interpreter.isEqual(a, right.evaluate());
+                };
+        }
+        throw new IllegalArgumentException("Unexpected binary operator " + operator.lexeme);
+    }
+
+    @Override
+    public Closure visitGroupingExpr(Expr.Grouping expr) {
+        // A grouping only matters to the parser, it compiles to its inner expression.
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Closure visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return () -> value;
+    }
+
+    @Override
+    public Closure visitUnaryExpr(Expr.Unary expr) {
+        Closure right = expr.right.accept(this);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case MINUS:
+                return () -> {
+                    Object value = right.evaluate();
+                    Interpreter.checkNumberOperand(operator, value);
+                    return -(double)value;
+                };
+            case BANG:
+                return () -> !Interpreter.isTruthy(right.evaluate());
+        }
+        throw new IllegalArgumentException("Unexpected unary operator " + operator.lexeme);
+    }
+}
@@ -0,0 +1,8 @@
+package com.arun.interpreter.lox.ast;
+
+/**
+ * An expression compiled to a JVM class by the {@link Jit}.
+ */
+interface CompiledExpression {
+    Object evaluate();
+}
@@ -0,0 +1,101 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.Token;
+
+import static com.arun.interpreter.lox.ast.Chunk.*;
+
+/**
+ * Compiles an expression tree into a {@link Chunk} of bytecode for the {@link VM}.
+ * The tree is walked once in post order: operands are emitted before the operator that consumes them,
+ * which is exactly the order a stack machine needs.
+ */
+public class Compiler implements Visitor<Void> {
+    private Chunk chunk;
+    // current depth of the operand stack while emitting code
+    private int depth;
+    // set once a literal gets an index that doesn't fit in its operand
+    private boolean tooManyConstants;
+
+    /** Returns null if the expression has more literals than a chunk can address, see Chunk.addConstant(). */
+    public Chunk compile(Expr expression) {
+        chunk = new Chunk();
+        depth = 0;
+        tooManyConstants = false;
+
+        expression.accept(this);
+        if (tooManyConstants) return null;
+        emit(OP_RETURN, null, -1);
+
+        chunk.seal();
+        return chunk;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+
+        switch (expr.operator.type) {
+            case MINUS: emit(OP_SUBTRACT, expr.operator, -1); break;
+            case SLASH: emit(OP_DIVIDE, expr.operator, -1); break;
+            case STAR: emit(OP_MULTIPLY, expr.operator, -1); break;
+            case PLUS: emit(OP_ADD, expr.operator, -1); break;
+            case GREATER: emit(OP_GREATER, expr.operator, -1); break;
+            case GREATER_EQUAL: emit(OP_GREATER_EQUAL, expr.operator, -1); break;
+            case LESS: emit(OP_LESS, expr.operator, -1); break;
+            case LESS_EQUAL: emit(OP_LESS_EQUAL, expr.operator, -1); break;
+            case BANG_EQUAL: emit(OP_NOT_EQUAL, expr.operator, -1); break;
+            case EQUAL_EQUAL: emit(OP_EQUAL, expr.operator, -1); break;
+            default:
+                // The parser never produces any other binary operator.
+                throw new IllegalArgumentException("Unexpected binary operator " + expr.operator.lexeme);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        // Grouping only affects the shape of the tree, there is nothing to emit for it.
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OP_NIL, null, 1);
+        } else if (Boolean.TRUE.equals(expr.value)) {
+            emit(OP_TRUE, null, 1);
+        } else if (Boolean.FALSE.equals(expr.value)) {
+            emit(OP_FALSE, null, 1);
+        } else {
+            int index = chunk.addConstant(expr.value);
+            // The rest of the tree is still walked, it is simpler than unwinding the visitor, but the chunk is dropped.
+            if (index > 0xffff) tooManyConstants = true;
+            emit(OP_CONSTANT, null, 1);
+            chunk.write((byte) (index >> 8), null);
+            chunk.write((byte) index, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+
+        switch (expr.operator.type) {
+            case MINUS: emit(OP_NEGATE, expr.operator, 0); break;
+            case BANG: emit(OP_NOT, expr.operator, 0); break;
+            default:
+                throw new IllegalArgumentException("Unexpected unary operator " + expr.operator.lexeme);
+        }
+        return null;
+    }
+
+    // Writes an opcode and keeps track of how it changes the stack depth.
+    private void emit(byte op, Token token, int stackEffect) {
+        chunk.write(op, token);
+        depth += stackEffect;
+        if (depth > chunk.maxStack) chunk.maxStack = depth;
+    }
+}
@@ -0,0 +1,246 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.arun.interpreter.lox.RuntimeError;
+import com.arun.interpreter.lox.Token;
+import com.arun.interpreter.lox.TokenBuffer;
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * An expression tree laid out flat in primitive arrays instead of linked objects.
+ *
+ * Every node is one slot in parallel arrays, in post order: its kind, its operator, the slots of its children and
+ * the line of its operator. Number literals sit in a double pool and other literals in an object pool. Children
+ * always come before their parent and the root is the last slot, so evaluating is one pass over the slots from
+ * first to last, with an operand stack, instead of chasing references all over the heap. Groupings are dropped.
+ *
+ * A node takes 14 bytes, where an Expr.Binary with its Token and the lexeme String take around 100.
+ * Operator tokens are only rebuilt from the kind and line when a runtime error needs one.
+ *
+ * Build once with {@link #from(Expr)}, then {@link #evaluate()} as often as needed, from any thread.
+ */
+public final class FlatTree {
+    // node kinds
+    static final byte NUMBER = 0;
+    static final byte CONSTANT = 1;
+    static final byte UNARY = 2;
+    static final byte BINARY = 3;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // Marks an operand stack slot whose value is the unboxed double in the number stack.
+    private static final Object UNBOXED = new Object();
+
+    private final byte[] kinds;
+    // TokenType ordinal of the operator, unused for literals
+    private final byte[] operators;
+    // unary operand or binary left operand, or the pool index of a literal
+    private final int[] first;
+    // binary right operand
+    private final int[] second;
+    private final int[] lines;
+    private final double[] numbers;
+    private final Object[] constants;
+    private final int maxStack;
+
+    private FlatTree(Builder builder) {
+        int size = builder.size;
+        this.kinds = Arrays.copyOf(builder.kinds, size);
+        this.operators = Arrays.copyOf(builder.operators, size);
+        this.first = Arrays.copyOf(builder.first, size);
+        this.second = Arrays.copyOf(builder.second, size);
+        this.lines = Arrays.copyOf(builder.lines, size);
+        this.numbers = Arrays.copyOf(builder.numbers, builder.numberCount);
+        this.constants = builder.constants.toArray();
+        this.maxStack = builder.maxStack;
+    }
+
+    public static FlatTree from(Expr expression) {
+        Builder builder = new Builder();
+        expression.accept(builder);
+        return new FlatTree(builder);
+    }
+
+    /** Number of nodes, not counting groupings. */
+    public int size() {
+        return kinds.length;
+    }
+
+    /** Slot of the root node. */
+    public int root() {
+        return kinds.length - 1;
+    }
+
+    public Object evaluate() {
+        final Object[] values = new Object[maxStack];
+        final double[] doubles = new double[maxStack];
+        int sp = 0;
+
+        for (int node = 0; node < kinds.length; node++) {
+            switch (kinds[node]) {
+                case NUMBER:
+                    values[sp] = UNBOXED;
+                    doubles[sp++] = numbers[first[node]];
+                    break;
+                case CONSTANT:
+                    values[sp++] = constants[first[node]];
+                    break;
+                case UNARY: {
+                    int top = sp - 1;
+                    if (operators[node] == TokenType.MINUS.ordinal()) {
+                        if (values[top] != UNBOXED) {
+                            if (!(values[top] instanceof Double)) {
+                                throw new RuntimeError(operator(node), "Operand must be a number.");
+                            }
+                            doubles[top] = (double)values[top];
+                            values[top] = UNBOXED;
+                        }
+                        doubles[top] = -doubles[top];
+                    } else {
+                        values[top] = !Interpreter.isTruthy(box(values, doubles, top));
+                    }
+                    break;
+                }
+                case BINARY: {
+                    int right = --sp;
+                    int left = sp - 1;
+                    TokenType type = TYPES[operators[node]];
+
+                    if (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) {
+                        boolean equal = Interpreter.isEqual(box(values, doubles, left), box(values, doubles, right));
+                        values[left] = type == TokenType.EQUAL_EQUAL ? equal : !equal;
+                        break;
+                    }
+
+                    boolean numbers = unbox(values, doubles, left) & unbox(values, doubles, right);
+                    if (!numbers) {
+                        if (type == TokenType.PLUS) {
+                            if (Interpreter.isString(values[left]) && Interpreter.isString(values[right])) {
+                                values[left] = Interpreter.concat(values[left], values[right]);
+                                break;
+                            }
+                            throw new RuntimeError(operator(node), "Operands must be two numbers or two strings.");
+                        }
+                        throw new RuntimeError(operator(node), "Operands must be numbers.");
+                    }
+
+                    double a = doubles[left];
+                    double b = doubles[right];
+                    switch (type) {
+                        case MINUS: doubles[left] = a - b; break;
+                        case SLASH: doubles[left] = a / b; break;
+                        case STAR: doubles[left] = a * b; break;
+                        case PLUS: doubles[left] = a + b; break;
+                        case GREATER: values[left] = a > b; break;
+                        case GREATER_EQUAL: values[left] = a >= b; break;
+                        case LESS: values[left] = a < b; break;
+                        case LESS_EQUAL: values[left] = a <= b; break;
+                        default: throw new IllegalStateException("Unknown operator " + type);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown node kind " + kinds[node]);
+            }
+        }
+
+        return box(values, doubles, 0);
+    }
+
+    // Makes a stack slot hold its value unboxed if it is a number, returns false if it isn't one.
+    private static boolean unbox(Object[] values, double[] doubles, int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return true;
+        if (!(value instanceof Double)) return false;
+        doubles[slot] = (double)value;
+        values[slot] = UNBOXED;
+        return true;
+    }
+
+    private static Object box(Object[] values, double[] doubles, int slot) {
+        Object value = values[slot];
+        return value == UNBOXED ? (Object)doubles[slot] : value;
+    }
+
+    // Only the type and line of an operator are kept, that is all a RuntimeError reports.
+    private Token operator(int node) {
+        TokenType type = TYPES[operators[node]];
+        return new Token(type, TokenBuffer.fixedLexeme(type), null, lines[node]);
+    }
+
+    // Appends the nodes of an Expr tree in post order.
+    private static class Builder implements Visitor<Integer> {
+        byte[] kinds = new byte[16];
+        byte[] operators = new byte[16];
+        int[] first = new int[16];
+        int[] second = new int[16];
+        int[] lines = new int[16];
+        int size = 0;
+
+        double[] numbers = new double[8];
+        int numberCount = 0;
+        final List<Object> constants = new ArrayList<>();
+
+        // operand stack depth while appending, as the evaluator will see it
+        int depth = 0;
+        int maxStack = 0;
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            depth--;
+            return add(BINARY, expr.operator, left, right);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            push();
+            if (expr.value instanceof Double) {
+                if (numberCount == numbers.length) numbers = Arrays.copyOf(numbers, numberCount * 2);
+                numbers[numberCount] = (double)expr.value;
+                return add(NUMBER, null, numberCount++, 0);
+            }
+            constants.add(expr.value);
+            return add(CONSTANT, null, constants.size() - 1, 0);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int right = expr.right.accept(this);
+            return add(UNARY, expr.operator, right, 0);
+        }
+
+        private void push() {
+            depth++;
+            if (depth > maxStack) maxStack = depth;
+        }
+
+        private int add(byte kind, Token operator, int a, int b) {
+            if (size == kinds.length) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                operators = Arrays.copyOf(operators, capacity);
+                first = Arrays.copyOf(first, capacity);
+                second = Arrays.copyOf(second, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+            }
+            kinds[size] = kind;
+            if (operator != null) {
+                operators[size] = (byte) operator.type.ordinal();
+                lines[size] = operator.line;
+            }
+            first[size] = a;
+            second[size] = b;
+            return size++;
+        }
+    }
+}
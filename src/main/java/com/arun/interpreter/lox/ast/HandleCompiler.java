@@ -0,0 +1,339 @@
+package com.arun.interpreter.lox.ast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import com.arun.interpreter.lox.Token;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compiles an expression tree into a tree of method handles, without generating any bytecode.
+ *
+ * Every node becomes a handle of type ()Object. A binary node is its operator handle, of type (Object, Object)Object,
+ * with the handles of its two operands collected into its arguments; a literal is a constant handle.
+ * Instead of checking its operands and throwing, an operator is a guardWithTest: the guard tests the operand types
+ * and picks the unboxed fast path, anything else falls through to the same operation as the tree walk interpreter,
+ * which throws the RuntimeError for the operator token.
+ *
+ * Method handles are only inlined by HotSpot when they are constant, eg: held in a static final field, or set as the
+ * target of a MutableCallSite whose dynamic invoker is in a static final field. Invoked from anywhere else the tree
+ * is still correct, just not fast. A program's tree can't go in a static final field of this class, there is one
+ * tree per program, so {@link #compileConstant(Expr)} defines a small hidden class per tree and puts it in a static
+ * final field of that.
+ */
+public class HandleCompiler implements Visitor<MethodHandle> {
+    /** A compiled tree bound into a class of its own, see {@link #compileConstant(Expr)}. */
+    public interface Compiled {
+        Object evaluate();
+    }
+
+    private static final String CLASS_NAME = "com/arun/interpreter/lox/ast/HandleExpression";
+    private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String LOOKUP = "java/lang/invoke/MethodHandles$Lookup";
+
+    // The same class file for every tree, each tree is passed to its class as class data.
+    private static final byte[] EXPRESSION_CLASS;
+
+    private static final MethodType BINARY = methodType(Object.class, Object.class, Object.class);
+    private static final MethodType UNARY = methodType(Object.class, Object.class);
+
+    private static final MethodHandle NUMBERS;
+    private static final MethodHandle STRINGS;
+    private static final MethodHandle NUMBER;
+    private static final MethodHandle UNBOX;
+    private static final MethodHandle CONCAT;
+    private static final MethodHandle SUBTRACT, MULTIPLY, DIVIDE, ADD, NEGATE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            NUMBERS = lookup.findStatic(HandleCompiler.class, "numbers",
+                    methodType(boolean.class, Object.class, Object.class));
+            STRINGS = lookup.findStatic(HandleCompiler.class, "strings",
+                    methodType(boolean.class, Object.class, Object.class));
+            NUMBER = lookup.findStatic(HandleCompiler.class, "number", methodType(boolean.class, Object.class));
+            CONCAT = lookup.findStatic(Interpreter.class, "concat", BINARY);
+
+            MethodType arithmetic = methodType(double.class, double.class, double.class);
+            SUBTRACT = lookup.findStatic(HandleCompiler.class, "subtract", arithmetic);
+            MULTIPLY = lookup.findStatic(HandleCompiler.class, "multiply", arithmetic);
+            DIVIDE = lookup.findStatic(HandleCompiler.class, "divide", arithmetic);
+            ADD = lookup.findStatic(HandleCompiler.class, "add", arithmetic);
+            NEGATE = lookup.findStatic(HandleCompiler.class, "negate", methodType(double.class, double.class));
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+        // (Object)double, a cast to Double followed by unboxing
+        UNBOX = MethodHandles.identity(Object.class).asType(methodType(double.class, Object.class));
+        try {
+            EXPRESSION_CLASS = expressionClass();
+        } catch (IOException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    /** Compile an expression into a handle of type ()Object. Invoke it with (Object) handle.invokeExact() */
+    public MethodHandle compile(Expr expression) {
+        return expression.accept(this);
+    }
+
+    /**
+     * Compile an expression into a hidden class whose evaluate() invokes the tree from a static final field, which
+     * HotSpot treats as a constant, so it can inline the tree into evaluate() as far as its inlining limits go. The
+     * class holds nothing else: once the Compiled is gone it can be unloaded with the tree.
+     */
+    public Compiled compileConstant(Expr expression) {
+        try {
+            MethodHandles.Lookup hidden = lookup.defineHiddenClassWithClassData(EXPRESSION_CLASS, compile(expression), true);
+            return (Compiled) hidden.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException error) {
+            // The class is the same every time, if it can't be made it is a bug here.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    /** Invoke a compiled expression. RuntimeErrors are thrown as they are. */
+    public static Object invoke(MethodHandle handle) {
+        try {
+            return (Object) handle.invokeExact();
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            // The handles only call methods that throw unchecked exceptions.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    @Override
+    public MethodHandle visitBinaryExpr(Expr.Binary expr) {
+        MethodHandle operator = binary(expr.operator);
+
+        // Collect the right operand first: the outer handle then evaluates the left operand before the inner
+        // one evaluates the right, the same order as the interpreter.
+        MethodHandle withRight = MethodHandles.collectArguments(operator, 1, expr.right.accept(this));
+        return MethodHandles.collectArguments(withRight, 0, expr.left.accept(this));
+    }
+
+    @Override
+    public MethodHandle visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public MethodHandle visitLiteralExpr(Expr.Literal expr) {
+        return MethodHandles.constant(Object.class, expr.value);
+    }
+
+    @Override
+    public MethodHandle visitUnaryExpr(Expr.Unary expr) {
+        return MethodHandles.collectArguments(unary(expr.operator), 0, expr.right.accept(this));
+    }
+
+    // (Object, Object)Object for a binary operator
+    private MethodHandle binary(Token operator) {
+        switch (operator.type) {
+            case MINUS: return arithmetic(SUBTRACT, "subtract", operator);
+            case STAR: return arithmetic(MULTIPLY, "multiply", operator);
+            case SLASH: return arithmetic(DIVIDE, "divide", operator);
+            case PLUS:
+                return MethodHandles.guardWithTest(NUMBERS, unboxed(ADD),
+                        MethodHandles.guardWithTest(STRINGS, CONCAT,
+                                checked("add", methodType(Object.class, Object.class, Object.class), operator)));
+            case GREATER: return comparison("greater", operator);
+            case GREATER_EQUAL: return comparison("greaterEqual", operator);
+            case LESS: return comparison("less", operator);
+            case LESS_EQUAL: return comparison("lessEqual", operator);
+            case BANG_EQUAL: return generic("notEqual", methodType(Boolean.class, Object.class, Object.class));
+            case EQUAL_EQUAL: return generic("equal", methodType(Boolean.class, Object.class, Object.class));
+        }
+        throw new IllegalArgumentException("Unexpected binary operator " + operator.lexeme);
+    }
+
+    // (Object)Object for a unary operator
+    private MethodHandle unary(Token operator) {
+        switch (operator.type) {
+            case MINUS:
+                MethodHandle negate = MethodHandles.filterArguments(NEGATE, 0, UNBOX).asType(UNARY);
+                return MethodHandles.guardWithTest(NUMBER, negate,
+                        checked("negate", methodType(double.class, Object.class), operator));
+            case BANG:
+                return generic("not", methodType(Boolean.class, Object.class));
+        }
+        throw new IllegalArgumentException("Unexpected unary operator " + operator.lexeme);
+    }
+
+    private MethodHandle arithmetic(MethodHandle numbers, String name, Token operator) {
+        return MethodHandles.guardWithTest(NUMBERS, unboxed(numbers),
+                checked(name, methodType(double.class, Object.class, Object.class), operator));
+    }
+
+    private MethodHandle comparison(String name, Token operator) {
+        MethodHandle numbers = runtime(name, methodType(Boolean.class, double.class, double.class));
+        return MethodHandles.guardWithTest(NUMBERS, unboxed(numbers),
+                checked(name, methodType(Boolean.class, Object.class, Object.class), operator));
+    }
+
+    // Unbox both operands with filterArguments and box the result, once the guard has said they are numbers.
+    private static MethodHandle unboxed(MethodHandle numbers) {
+        return MethodHandles.filterArguments(numbers, 0, UNBOX, UNBOX).asType(BINARY);
+    }
+
+    // The JitRuntime operation that does the full checks, with the operator token bound as its last argument.
+    // The slow path of every guard, it is also where the RuntimeErrors come from.
+    private MethodHandle checked(String name, MethodType type, Token operator) {
+        MethodHandle handle = runtime(name, type.appendParameterTypes(Token.class));
+        handle = MethodHandles.insertArguments(handle, type.parameterCount(), operator);
+        return handle.asType(type.parameterCount() == 1 ? UNARY : BINARY);
+    }
+
+    private MethodHandle runtime(String name, MethodType type) {
+        try {
+            return lookup.findStatic(JitRuntime.class, name, type);
+        } catch (ReflectiveOperationException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // An operation that works on any operands, with Object parameters and result.
+    private MethodHandle generic(String name, MethodType type) {
+        return runtime(name, type).asType(type.parameterCount() == 1 ? UNARY : BINARY);
+    }
+
+    /*
+     * The class file behind compileConstant(), it looks like:
+     *
+     *   final class HandleExpression implements HandleCompiler.Compiled {
+     *     private static final MethodHandle EXPRESSION =
+     *         MethodHandles.classData(MethodHandles.lookup(), "_", MethodHandle.class);
+     *     public Object evaluate() { return (Object) EXPRESSION.invokeExact(); }
+     *   }
+     *
+     * There are no branches, so like the Jit's classes it needs no stack map frames.
+     */
+    private static byte[] expressionClass() throws IOException {
+        Jit.ConstantPool pool = new Jit.ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int compiledInterface = pool.classRef("com/arun/interpreter/lox/ast/HandleCompiler$Compiled");
+        int field = pool.fieldRef(CLASS_NAME, "EXPRESSION", "L" + METHOD_HANDLE + ";");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int lookup = pool.methodRef("java/lang/invoke/MethodHandles", "lookup", "()L" + LOOKUP + ";");
+        int classData = pool.methodRef("java/lang/invoke/MethodHandles", "classData",
+                "(L" + LOOKUP + ";Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+        int defaultName = pool.string("_");
+        int handleClass = pool.classRef(METHOD_HANDLE);
+        int invokeExact = pool.methodRef(METHOD_HANDLE, "invokeExact", "()Ljava/lang/Object;");
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream rest = new DataOutputStream(body);
+        rest.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+        rest.writeShort(thisClass);
+        rest.writeShort(superClass);
+        rest.writeShort(1);
+        rest.writeShort(compiledInterface);
+
+        // private static final MethodHandle EXPRESSION;
+        rest.writeShort(1);
+        rest.writeShort(0x0002 | 0x0008 | 0x0010);
+        rest.writeShort(pool.utf8("EXPRESSION"));
+        rest.writeShort(pool.utf8("L" + METHOD_HANDLE + ";"));
+        rest.writeShort(0);
+
+        rest.writeShort(3);
+
+        byte[] clinit = {
+                (byte) 0xb8, (byte) (lookup >> 8), (byte) lookup,             // invokestatic MethodHandles.lookup
+                0x13, (byte) (defaultName >> 8), (byte) defaultName,          // ldc_w "_"
+                0x13, (byte) (handleClass >> 8), (byte) handleClass,          // ldc_w MethodHandle.class
+                (byte) 0xb8, (byte) (classData >> 8), (byte) classData,       // invokestatic MethodHandles.classData
+                (byte) 0xc0, (byte) (handleClass >> 8), (byte) handleClass,   // checkcast MethodHandle
+                (byte) 0xb3, (byte) (field >> 8), (byte) field,               // putstatic EXPRESSION
+                (byte) 0xb1                                                   // return
+        };
+        method(rest, 0x0008, pool.utf8("<clinit>"), pool.utf8("()V"), codeName, 3, 0, clinit);
+
+        byte[] init = {
+                0x2a,                                                         // aload_0
+                (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit,     // invokespecial Object.<init>
+                (byte) 0xb1                                                   // return
+        };
+        method(rest, 0x0000, pool.utf8("<init>"), pool.utf8("()V"), codeName, 1, 1, init);
+
+        byte[] evaluate = {
+                (byte) 0xb2, (byte) (field >> 8), (byte) field,               // getstatic EXPRESSION
+                (byte) 0xb6, (byte) (invokeExact >> 8), (byte) invokeExact,   // invokevirtual MethodHandle.invokeExact
+                (byte) 0xb0                                                   // areturn
+        };
+        method(rest, 0x0001, pool.utf8("evaluate"), pool.utf8("()Ljava/lang/Object;"), codeName, 1, 1, evaluate);
+
+        rest.writeShort(0); // class attributes
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(pool.count);
+        out.write(pool.bytes.toByteArray());
+        out.write(body.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    private static void method(DataOutputStream out, int access, int name, int descriptor, int codeName,
+                               int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+    }
+
+    // Type guards, these replace checkNumberOperands on the fast paths.
+
+    private static boolean numbers(Object left, Object right) {
+        return left instanceof Double && right instanceof Double;
+    }
+
+    private static boolean strings(Object left, Object right) {
+        return Interpreter.isString(left) && Interpreter.isString(right);
+    }
+
+    private static boolean number(Object value) {
+        return value instanceof Double;
+    }
+
+    private static double subtract(double left, double right) {
+        return left - right;
+    }
+
+    private static double multiply(double left, double right) {
+        return left * right;
+    }
+
+    private static double divide(double left, double right) {
+        return left / right;
+    }
+
+    private static double add(double left, double right) {
+        return left + right;
+    }
+
+    private static double negate(double value) {
+        return -value;
+    }
+}
@@ -0,0 +1,141 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * Hash-conses an expression tree: structurally identical subtrees become one shared node, so the tree turns into a
+ * DAG. Generated expressions often repeat the same subexpression many times over, eg: (a * b + c) in every term,
+ * and the parser allocates every copy separately.
+ *
+ * Nodes are compared bottom up. Two nodes are the same when they have the same kind, operator and line and their
+ * children are already the same interned nodes, or for literals when their values are equal. The operator line is
+ * part of the key because a runtime error reports it, so sharing never changes an error message.
+ *
+ * Nodes with more than one parent are listed by {@link #shared()}. Hand them to
+ * {@link Interpreter#evaluate(Expr, Set)} to compute each of them once per evaluation. Every other visitor just sees
+ * a tree that happens to reuse nodes, eg: the AstPrinter still prints the expanded form.
+ */
+public class Interner implements Visitor<Expr> {
+    private static final Object NIL = new Object();
+
+    private final Map<Key, Expr> nodes = new HashMap<>();
+    // How many parents point at each interned node.
+    private final Map<Expr, Integer> uses = new IdentityHashMap<>();
+    private int inputNodes = 0;
+
+    public Expr intern(Expr expression) {
+        return expression.accept(this);
+    }
+
+    /** The interned nodes that more than one parent points at. */
+    public Set<Expr> shared() {
+        Set<Expr> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<Expr, Integer> entry : uses.entrySet()) {
+            if (entry.getValue() > 1) shared.add(entry.getKey());
+        }
+        return shared;
+    }
+
+    /** Nodes in the expressions handed to intern. */
+    public int inputNodes() {
+        return inputNodes;
+    }
+
+    /** Distinct nodes left after interning. */
+    public int internedNodes() {
+        return nodes.size();
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expr.left.accept(this);
+        Expr right = expr.right.accept(this);
+        Key key = new Key(Expr.Binary.class, expr.operator.type, expr.operator.line, null, left, right);
+        return canonical(key, expr, left, right, () -> new Expr.Binary(left, expr.operator, right),
+                left == expr.left && right == expr.right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr inner = expr.expression.accept(this);
+        Key key = new Key(Expr.Grouping.class, null, 0, null, inner, null);
+        return canonical(key, expr, inner, null, () -> new Expr.Grouping(inner), inner == expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        Key key = new Key(Expr.Literal.class, null, 0, expr.value == null ? NIL : expr.value, null, null);
+        return canonical(key, expr, null, null, null, true);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = expr.right.accept(this);
+        Key key = new Key(Expr.Unary.class, expr.operator.type, expr.operator.line, null, right, null);
+        return canonical(key, expr, right, null, () -> new Expr.Unary(expr.operator, right), right == expr.right);
+    }
+
+    private interface Copy {
+        Expr create();
+    }
+
+    // The interned node for a key. The first node seen for a key becomes the canonical one, it is reused as is when
+    // its children didn't change and copied onto the interned children otherwise.
+    private Expr canonical(Key key, Expr expr, Expr first, Expr second, Copy copy, boolean unchanged) {
+        inputNodes++;
+
+        Expr existing = nodes.get(key);
+        if (existing != null) return existing;
+
+        Expr node = unchanged ? expr : copy.create();
+        nodes.put(key, node);
+        if (first != null) uses.merge(first, 1, Integer::sum);
+        if (second != null) uses.merge(second, 1, Integer::sum);
+        return node;
+    }
+
+    private static final class Key {
+        final Class<?> kind;
+        final TokenType operator;
+        final int line;
+        final Object value;
+        // already interned, so compared by identity
+        final Expr first;
+        final Expr second;
+
+        Key(Class<?> kind, TokenType operator, int line, Object value, Expr first, Expr second) {
+            this.kind = kind;
+            this.operator = operator;
+            this.line = line;
+            this.value = value;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key)other;
+            return kind == key.kind && operator == key.operator && line == key.line &&
+                    first == key.first && second == key.second && Objects.equals(value, key.value);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = kind.hashCode();
+            hash = 31 * hash + Objects.hashCode(operator);
+            hash = 31 * hash + line;
+            hash = 31 * hash + Objects.hashCode(value);
+            hash = 31 * hash + System.identityHashCode(first);
+            hash = 31 * hash + System.identityHashCode(second);
+            return hash;
+        }
+    }
+}
@@ -1,66 +1,107 @@
 package com.arun.interpreter.lox.ast;
 
-import com.arun.interpreter.lox.Lox;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import com.arun.interpreter.lox.RuntimeError;
 import com.arun.interpreter.lox.Token;
 
+import static com.arun.interpreter.lox.TokenType.MINUS;
+
 /**
  * Interpret and evaluate the expressions.
  * An AST Tree Walk Interpreter
+ *
+ * An Interpreter keeps scratch state while evaluating, use one instance per thread.
  */
 public class Interpreter implements Visitor<Object> {
+    // Marks the fallback slot as empty. nil can't be used for that, it is a valid non number value.
+    private static final Object NONE = new Object();
+
+    // Non number value produced by the last evaluateNumber call, or NONE.
+    private Object fallback = NONE;
+
+    // Nodes reached through more than one parent in the expression being evaluated, null for a plain tree.
+    private Set<Expr> shared = null;
+    // Values of the shared nodes computed so far in this evaluation.
+    private final Map<Expr, Object> sharedValues = new IdentityHashMap<>();
+    // The shared node whose value is being computed right now, so it doesn't look itself up.
+    private Expr computing = null;
+
+    public Object evaluate(Expr expr) {
+        if (shared != null && expr != computing && shared.contains(expr)) return evaluateShared(expr);
+        return expr.accept(this);
+    }
 
-    public void interpret(Expr expression) {
+    /**
+     * Evaluate a DAG built by the {@link Interner}: each of the shared nodes is computed once and its value reused
+     * wherever else it appears. The values are only kept for this evaluation.
+     */
+    public Object evaluate(Expr expr, Set<Expr> shared) {
+        this.shared = shared;
         try {
-            Object value = evaluate(expression);
-            System.out.println(stringify(value));
-        } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            return evaluate(expr);
+        } finally {
+            this.shared = null;
+            sharedValues.clear();
+            fallback = NONE;
         }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    private Object evaluateShared(Expr expr) {
+        Object value = sharedValues.get(expr);
+        if (value != null || sharedValues.containsKey(expr)) return value;
+
+        Expr outer = computing;
+        computing = expr;
+        try {
+            value = expr.accept(this);
+        } finally {
+            computing = outer;
+        }
+        sharedValues.put(expr, value);
+        return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
+            // Arithmetic goes through the unboxed evaluateNumber path, so a chain of numeric operators carries
+            // primitive doubles between nodes and the result is boxed only once, here at the top of the chain.
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            case PLUS:
-                // The + operator can also be used to concatenate two strings. To handle that, we don’t just assume the operands are a certain type and cast them,
-                // we dynamically check the type and choose the appropriate operation.
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
+                return evaluateNumber(expr);
+            case PLUS: {
+                // The + operator can also be used to concatenate two strings, in which case evaluateNumber hands
+                // the string back through the fallback slot.
+                double value = evaluateNumber(expr);
+                if (fallback != NONE) return takeFallback();
+                return value;
+            }
+            case GREATER: {
+                double left = leftNumber(expr);
+                return left > rightNumber(expr);
+            }
+            case GREATER_EQUAL: {
+                double left = leftNumber(expr);
+                return left >= rightNumber(expr);
+            }
+            case LESS: {
+                double left = leftNumber(expr);
+                return left < rightNumber(expr);
+            }
+            case LESS_EQUAL: {
+                double left = leftNumber(expr);
+                return left <= rightNumber(expr);
+            }
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
 
+        switch (expr.operator.type) {
             // Unlike the comparison operators which require numbers, the equality operators support operands of any type, even mixed ones.
             // You can’t ask Lox if 3 is less than "three", but you can ask if it’s equal to it.
             case BANG_EQUAL: return !isEqual(left, right);
@@ -87,47 +128,217 @@ public class Interpreter implements Visitor<Object> {
     // First, we evaluate the operand expression. Then we apply the unary operator itself to the result of that.
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case MINUS:
-                // The subexpression must be a number. Since we don’t statically know that in Java, we cast it before performing the operation. This type cast happens at runtime when the - is evaluated
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                // The subexpression must be a number, evaluateNumber throws if it isn't.
+                return evaluateNumber(expr);
             case BANG:
-                return !isTruthy(right);
+                return !isTruthy(evaluate(expr.right));
         }
 
         // Unreachable.
         return null;
     }
 
+    /**
+     * Unboxed evaluation of an expression that is expected to produce a number.
+     * Numbers are passed between nodes as primitive doubles so arithmetic doesn't allocate a Double per node.
+     *
+     * If the expression produces something else (a string, boolean or nil), the value is parked in the fallback
+     * slot and the returned double is meaningless. Every caller checks the slot right after the call and falls back
+     * to the generic Object path, which keeps the errors and their order identical to the boxed evaluation.
+     */
+    double evaluateNumber(Expr expr) {
+        if (shared != null && expr != computing && shared.contains(expr)) {
+            Object value = evaluateShared(expr);
+            if (value instanceof Double) return (double)value;
+            return notANumber(value);
+        }
+
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (value instanceof Double) return (double)value;
+            return notANumber(value);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.operator.type) {
+                case MINUS: {
+                    double left = leftNumber(binary);
+                    return left - rightNumber(binary);
+                }
+                case SLASH: {
+                    double left = leftNumber(binary);
+                    return left / rightNumber(binary);
+                }
+                case STAR: {
+                    double left = leftNumber(binary);
+                    return left * rightNumber(binary);
+                }
+                case PLUS:
+                    return add(binary);
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == MINUS) {
+                double right = evaluateNumber(unary.right);
+                if (fallback != NONE) {
+                    fallback = NONE;
+                    throw new RuntimeError(unary.operator, "Operand must be a number.");
+                }
+                return -right;
+            }
+        }
+
+        // Comparisons, equality and ! never produce a number.
+        return notANumber(evaluate(expr));
+    }
+
+    private double add(Expr.Binary expr) {
+        double left = evaluateNumber(expr.left);
+        if (fallback != NONE) {
+            // The left operand is not a number, so this can only be a string concatenation.
+            Object leftValue = takeFallback();
+            Object right = evaluate(expr.right);
+            if (isString(leftValue) && isString(right)) {
+                return notANumber(concat(leftValue, right));
+            }
+            throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+        }
+
+        double right = evaluateNumber(expr.right);
+        if (fallback != NONE) {
+            fallback = NONE;
+            throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+        }
+        return left + right;
+    }
+
+    // Left operand of an operator that needs two numbers.
+    private double leftNumber(Expr.Binary expr) {
+        double left = evaluateNumber(expr.left);
+        if (fallback != NONE) {
+            takeFallback();
+            // The right operand is still evaluated first, so an error inside it wins just like in the boxed path.
+            evaluate(expr.right);
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+        return left;
+    }
+
+    // Right operand of an operator that needs two numbers.
+    private double rightNumber(Expr.Binary expr) {
+        double right = evaluateNumber(expr.right);
+        if (fallback != NONE) {
+            fallback = NONE;
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+        return right;
+    }
+
+    private double notANumber(Object value) {
+        fallback = value;
+        return Double.NaN;
+    }
+
+    private Object takeFallback() {
+        Object value = fallback;
+        fallback = NONE;
+        return value;
+    }
+
+    // A binary operator applied to two evaluated operands, the boxed semantics every tree walk shares.
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double)left - (double)right;
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return (double)left / (double)right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (double)left * (double)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+                if (isString(left) && isString(right)) return concat(left, right);
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left >= (double)right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left <= (double)right;
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+        }
+        throw new IllegalArgumentException("Unexpected binary operator " + operator.lexeme);
+    }
+
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
+            case MINUS:
+                checkNumberOperand(operator, right);
+                return -(double)right;
+            case BANG:
+                return !isTruthy(right);
+        }
+        throw new IllegalArgumentException("Unexpected unary operator " + operator.lexeme);
+    }
+
     // false and nil are falsey, and everything else is truthy.
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
+        // A string can be a Rope, compare the characters.
+        if (a instanceof Rope) a = a.toString();
+        if (b instanceof Rope) b = b.toString();
+
         return a.equals(b);
     }
 
+    // A string value is either a String or a Rope built by +.
+    static boolean isString(Object object) {
+        return object instanceof String || object instanceof Rope;
+    }
+
+    // Concatenation of two string values, without copying either of them.
+    static Object concat(Object left, Object right) {
+        return Rope.concat((CharSequence)left, (CharSequence)right);
+    }
+
     // Type checking
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private String stringify(Object object) {
+    public static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
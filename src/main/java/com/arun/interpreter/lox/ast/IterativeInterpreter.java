@@ -0,0 +1,83 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.Arrays;
+
+/**
+ * A tree walk interpreter that doesn't recurse: the nodes still to visit and the values computed so far are kept on
+ * two explicit stacks on the heap. How deep a tree it can evaluate is only limited by memory, where the
+ * {@link Interpreter} overflows the Java stack somewhere past a few thousand levels.
+ *
+ * A node is visited twice. The first time it pushes itself back, marked as done, with its operands on top, right
+ * before left so the left operand runs first. The second time its operands' values are on top of the value stack,
+ * and the operator is applied to them. The values and RuntimeErrors are the same as the Interpreter's.
+ *
+ * It is slower than the Interpreter on ordinary trees, the Engine only uses it for the deep ones.
+ */
+public class IterativeInterpreter {
+    private Expr[] nodes = new Expr[64];
+    // true for a node whose operands have been evaluated
+    private boolean[] done = new boolean[64];
+    private int nodeCount = 0;
+
+    private Object[] values = new Object[64];
+    private int valueCount = 0;
+
+    public Object evaluate(Expr expression) {
+        try {
+            push(expression, false);
+            while (nodeCount > 0) {
+                nodeCount--;
+                Expr node = nodes[nodeCount];
+                boolean operandsDone = done[nodeCount];
+                nodes[nodeCount] = null;
+
+                if (node instanceof Expr.Literal) {
+                    pushValue(((Expr.Literal)node).value);
+                } else if (node instanceof Expr.Grouping) {
+                    push(((Expr.Grouping)node).expression, false);
+                } else if (node instanceof Expr.Unary) {
+                    Expr.Unary unary = (Expr.Unary)node;
+                    if (operandsDone) {
+                        values[valueCount - 1] = Interpreter.unary(unary.operator, values[valueCount - 1]);
+                    } else {
+                        push(unary, true);
+                        push(unary.right, false);
+                    }
+                } else {
+                    Expr.Binary binary = (Expr.Binary)node;
+                    if (operandsDone) {
+                        Object right = values[--valueCount];
+                        values[valueCount] = null;
+                        values[valueCount - 1] = Interpreter.binary(binary.operator, values[valueCount - 1], right);
+                    } else {
+                        push(binary, true);
+                        push(binary.right, false);
+                        push(binary.left, false);
+                    }
+                }
+            }
+            return values[0];
+        } finally {
+            // After a runtime error the stacks still hold the rest of the tree.
+            Arrays.fill(nodes, 0, nodeCount, null);
+            Arrays.fill(values, 0, Math.max(valueCount, 1), null);
+            nodeCount = 0;
+            valueCount = 0;
+        }
+    }
+
+    private void push(Expr node, boolean operandsDone) {
+        if (nodeCount == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            done = Arrays.copyOf(done, nodeCount * 2);
+        }
+        nodes[nodeCount] = node;
+        done[nodeCount] = operandsDone;
+        nodeCount++;
+    }
+
+    private void pushValue(Object value) {
+        if (valueCount == values.length) values = Arrays.copyOf(values, valueCount * 2);
+        values[valueCount++] = value;
+    }
+}
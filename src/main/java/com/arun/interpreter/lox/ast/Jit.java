@@ -0,0 +1,506 @@
+package com.arun.interpreter.lox.ast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.arun.interpreter.lox.Token;
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * A JIT backend that compiles hot expression trees into JVM classes.
+ *
+ * Every expression starts out running on the tree walk {@link Interpreter}. Once the same Expr has been evaluated
+ * {@link #THRESHOLD} times it is compiled into a hidden class with a single straight-line evaluate() method, which
+ * HotSpot can then compile as a whole. Numbers stay primitive doubles on the JVM operand stack wherever the tree
+ * tells us statically that a subexpression produces a number; everything else goes through the small helpers in
+ * {@link JitRuntime}, which carry the exact Interpreter semantics and errors.
+ *
+ * The generated code has no branches, so the class needs no stack map frames. Hidden classes are not strongly tied to
+ * their loader: once a Site is gone (eg: its program evicted from the expression cache) its compiled class can be
+ * unloaded.
+ *
+ * Counting only helps if the same expression is evaluated again with the same Site, ie: with an ExpressionCache in
+ * front.
+ */
+public class Jit {
+    /** Evaluations of an expression before it gets compiled, set with -Dlox.jit.threshold */
+    public static final int THRESHOLD = Integer.getInteger("lox.jit.threshold", 1000);
+
+    private static final String CLASS_NAME = "com/arun/interpreter/lox/ast/JitExpression";
+    private static final String RUNTIME = "com/arun/interpreter/lox/ast/JitRuntime";
+    private static final String TOKEN = "com/arun/interpreter/lox/Token";
+    private static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+
+    // The largest method HotSpot still JIT compiles by default.
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    // set once a failure to define a compiled class has been printed, one is enough to go on
+    private final AtomicBoolean reported = new AtomicBoolean();
+
+    /**
+     * What the jit knows about one expression: how often it has been evaluated, and its compiled class once it has
+     * one. The caller keeps it next to the expression, eg: on an Engine's Program, so looking it up takes no lock.
+     */
+    public static final class Site {
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile CompiledExpression compiled;
+
+        /** True once the expression has been compiled, it doesn't go back to the interpreter after that. */
+        public boolean isCompiled() {
+            return compiled != null;
+        }
+    }
+
+    public Object evaluate(Expr expression, Site site) {
+        return evaluate(expression, Collections.emptySet(), site);
+    }
+
+    /**
+     * Evaluate an expression interned by the {@link Interner}, eg: an optimized program. Until it is compiled its
+     * shared nodes are computed once per evaluation, like the tree walker does.
+     */
+    public Object evaluate(Expr expression, Set<Expr> shared, Site site) {
+        CompiledExpression compiled = site.compiled;
+        if (compiled != null) return compiled.evaluate();
+
+        if (site.count.incrementAndGet() == THRESHOLD) {
+            compiled = compile(expression);
+            // If compiling fails the count has gone past the threshold and the site stays interpreted.
+            if (compiled != null) {
+                site.compiled = compiled;
+                return compiled.evaluate();
+            }
+        }
+
+        if (shared.isEmpty()) return new Interpreter().evaluate(expression);
+        return new Interpreter().evaluate(expression, shared);
+    }
+
+    /**
+     * Compile an expression right away, bypassing the threshold.
+     * Returns null if it can't be compiled, eg: when it is too big for a single JVM method.
+     */
+    CompiledExpression compile(Expr expression) {
+        try {
+            CodeGenerator generator = new CodeGenerator();
+            byte[] bytes = generator.generate(expression);
+            if (bytes == null) return null;
+
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            return (CompiledExpression) hidden.lookupClass()
+                    .getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) generator.constants.toArray());
+        } catch (IllegalStateException tooBig) {
+            // The constant pool is full, or a string is too long for it: limits of a class file, like the method size.
+            return null;
+        } catch (IOException | ReflectiveOperationException | LinkageError error) {
+            // A class the JVM won't define or create is a bug in the generator. The expression stays on the
+            // interpreter, which gets the same results, but it shouldn't go unnoticed.
+            if (reported.compareAndSet(false, true)) {
+                System.err.println("[jit] can't compile an expression, it stays interpreted: " + error);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Generates the class file for one expression. The class looks like:
+     *
+     *   final class JitExpression implements CompiledExpression {
+     *     private final Object[] constants;   // operator tokens and odd literal values
+     *     JitExpression(Object[] constants) { this.constants = constants; }
+     *     public Object evaluate() { ... }
+     *   }
+     *
+     * Each visit method emits the code for a subexpression and returns true if it left a primitive double on the
+     * stack, false if it left an Object.
+     */
+    private static class CodeGenerator implements Visitor<Boolean> {
+        final List<Object> constants = new ArrayList<>();
+
+        private final ConstantPool pool = new ConstantPool();
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack = 0;
+        private int maxStack = 0;
+
+        // subexpressions known to produce a number
+        private final Map<Expr, Boolean> numbers = new IdentityHashMap<>();
+
+        byte[] generate(Expr expression) throws IOException {
+            if (expression.accept(this)) box();
+            op(0xb0, -1); // areturn
+
+            if (code.size() > HUGE_METHOD_LIMIT || constants.size() > Short.MAX_VALUE) return null;
+
+            int thisClass = pool.classRef(CLASS_NAME);
+            int superClass = pool.classRef("java/lang/Object");
+            int compiledInterface = pool.classRef("com/arun/interpreter/lox/ast/CompiledExpression");
+            int constantsField = pool.fieldRef(CLASS_NAME, "constants", OBJECT_ARRAY);
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = pool.utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52); // Java 8 class file, straight-line code verifies without stack map frames
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream rest = new DataOutputStream(body);
+            rest.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+            rest.writeShort(thisClass);
+            rest.writeShort(superClass);
+            rest.writeShort(1);
+            rest.writeShort(compiledInterface);
+
+            // private final Object[] constants;
+            rest.writeShort(1);
+            rest.writeShort(0x0002 | 0x0010);
+            rest.writeShort(pool.utf8("constants"));
+            rest.writeShort(pool.utf8(OBJECT_ARRAY));
+            rest.writeShort(0);
+
+            rest.writeShort(2);
+
+            // JitExpression(Object[] constants)
+            byte[] init = {
+                    0x2a,                                                  // aload_0
+                    (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, // invokespecial Object.<init>
+                    0x2a,                                                  // aload_0
+                    0x2b,                                                  // aload_1
+                    (byte) 0xb5, (byte) (constantsField >> 8), (byte) constantsField, // putfield constants
+                    (byte) 0xb1                                            // return
+            };
+            method(rest, 0x0000, pool.utf8("<init>"), pool.utf8("([Ljava/lang/Object;)V"), codeName, 2, 2, init);
+
+            // public Object evaluate()
+            method(rest, 0x0001, pool.utf8("evaluate"), pool.utf8("()Ljava/lang/Object;"), codeName,
+                    maxStack, 1, code.toByteArray());
+
+            rest.writeShort(0); // class attributes
+
+            out.writeShort(pool.count);
+            out.write(pool.bytes.toByteArray());
+            out.write(body.toByteArray());
+            return bytes.toByteArray();
+        }
+
+        private static void method(DataOutputStream out, int access, int name, int descriptor, int codeName,
+                                   int maxStack, int maxLocals, byte[] code) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+        }
+
+        @Override
+        public Boolean visitBinaryExpr(Expr.Binary expr) {
+            switch (expr.operator.type) {
+                case MINUS: return arithmetic(expr, 0x67, "subtract");
+                case STAR: return arithmetic(expr, 0x6b, "multiply");
+                case SLASH: return arithmetic(expr, 0x6f, "divide");
+                case PLUS:
+                    if (isNumber(expr)) {
+                        expr.left.accept(this);
+                        expr.right.accept(this);
+                        op(0x63, -2); // dadd
+                        return true;
+                    }
+                    objects(expr);
+                    token(expr.operator);
+                    invoke("add", "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", -2);
+                    return false;
+                case GREATER: return comparison(expr, "greater");
+                case GREATER_EQUAL: return comparison(expr, "greaterEqual");
+                case LESS: return comparison(expr, "less");
+                case LESS_EQUAL: return comparison(expr, "lessEqual");
+                case BANG_EQUAL:
+                    objects(expr);
+                    invoke("notEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Boolean;", -1);
+                    return false;
+                case EQUAL_EQUAL:
+                    objects(expr);
+                    invoke("equal", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Boolean;", -1);
+                    return false;
+            }
+            throw new IllegalArgumentException("Unexpected binary operator " + expr.operator.lexeme);
+        }
+
+        // -, * and / either produce a number or throw, so they always leave a double.
+        private boolean arithmetic(Expr.Binary expr, int opcode, String helper) {
+            if (isNumber(expr.left) && isNumber(expr.right)) {
+                expr.left.accept(this);
+                expr.right.accept(this);
+                op(opcode, -2);
+            } else {
+                objects(expr);
+                token(expr.operator);
+                invoke(helper, "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)D", -1);
+            }
+            return true;
+        }
+
+        private boolean comparison(Expr.Binary expr, String helper) {
+            if (isNumber(expr.left) && isNumber(expr.right)) {
+                expr.left.accept(this);
+                expr.right.accept(this);
+                invoke(helper, "(DD)Ljava/lang/Boolean;", -3);
+            } else {
+                objects(expr);
+                token(expr.operator);
+                invoke(helper, "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Boolean;", -2);
+            }
+            return false;
+        }
+
+        // Both operands as Objects, left first.
+        private void objects(Expr.Binary expr) {
+            if (expr.left.accept(this)) box();
+            if (expr.right.accept(this)) box();
+        }
+
+        @Override
+        public Boolean visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Boolean visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if (value instanceof Double) {
+                op(0x14, 2); // ldc2_w
+                u2(pool.doubleConstant((double)value));
+                return true;
+            }
+
+            if (value == null) {
+                op(0x01, 1); // aconst_null
+            } else if (value instanceof Boolean) {
+                op(0xb2, 1); // getstatic
+                u2(pool.fieldRef("java/lang/Boolean", (boolean)value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+            } else if (value instanceof String) {
+                op(0x13, 1); // ldc_w
+                u2(pool.string((String)value));
+            } else {
+                constant(value);
+            }
+            return false;
+        }
+
+        @Override
+        public Boolean visitUnaryExpr(Expr.Unary expr) {
+            switch (expr.operator.type) {
+                case MINUS:
+                    if (expr.right.accept(this)) {
+                        op(0x77, 0); // dneg
+                    } else {
+                        token(expr.operator);
+                        invoke("negate", "(Ljava/lang/Object;L" + TOKEN + ";)D", 0);
+                    }
+                    return true;
+                case BANG:
+                    if (expr.right.accept(this)) {
+                        // A number is always truthy. It is still evaluated, it may throw.
+                        op(0x58, -2); // pop2
+                        op(0xb2, 1);  // getstatic Boolean.FALSE
+                        u2(pool.fieldRef("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;"));
+                    } else {
+                        invoke("not", "(Ljava/lang/Object;)Ljava/lang/Boolean;", 0);
+                    }
+                    return false;
+            }
+            throw new IllegalArgumentException("Unexpected unary operator " + expr.operator.lexeme);
+        }
+
+        // Whether code generated for this expression leaves a double: a number literal, any -, * or /,
+        // and a + of two numbers.
+        private boolean isNumber(Expr expr) {
+            Boolean known = numbers.get(expr);
+            if (known != null) return known;
+
+            boolean number = false;
+            if (expr instanceof Expr.Literal) {
+                number = ((Expr.Literal)expr).value instanceof Double;
+            } else if (expr instanceof Expr.Grouping) {
+                number = isNumber(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Unary) {
+                number = ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                switch (binary.operator.type) {
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        number = true;
+                        break;
+                    case PLUS:
+                        number = isNumber(binary.left) && isNumber(binary.right);
+                        break;
+                }
+            }
+
+            numbers.put(expr, number);
+            return number;
+        }
+
+        private void box() {
+            op(0xb8, -1); // invokestatic Double.valueOf
+            u2(pool.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+        }
+
+        private void token(Token token) {
+            constant(token);
+            op(0xc0, 0); // checkcast
+            u2(pool.classRef(TOKEN));
+        }
+
+        // this.constants[index]
+        private void constant(Object value) {
+            int index = constants.size();
+            constants.add(value);
+            op(0x2a, 1); // aload_0
+            op(0xb4, 0); // getfield
+            u2(pool.fieldRef(CLASS_NAME, "constants", OBJECT_ARRAY));
+            op(0x11, 1); // sipush
+            u2(index);
+            op(0x32, -1); // aaload
+        }
+
+        private void invoke(String helper, String descriptor, int stackEffect) {
+            op(0xb8, stackEffect); // invokestatic
+            u2(pool.methodRef(RUNTIME, helper, descriptor));
+        }
+
+        private void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+    }
+
+    // The constant pool of a generated class, entries are shared when they repeat. HandleCompiler writes one too.
+    static class ConstantPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String text) {
+            Integer index = entries.get("utf8:" + text);
+            if (index != null) return index;
+
+            try {
+                bytes.write(1);
+                // modified UTF-8, the same as the class file format uses
+                new DataOutputStream(bytes).writeUTF(text);
+            } catch (IOException error) {
+                // a string too long for the constant pool
+                throw new IllegalStateException(error);
+            }
+            return add("utf8:" + text, 1);
+        }
+
+        int classRef(String name) {
+            return reference("class:" + name, 7, utf8(name));
+        }
+
+        int string(String text) {
+            return reference("string:" + text, 8, utf8(text));
+        }
+
+        int doubleConstant(double value) {
+            String key = "double:" + Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            long bits = Double.doubleToRawLongBits(value);
+            bytes.write(6);
+            u2((int) (bits >>> 48));
+            u2((int) (bits >>> 32));
+            u2((int) (bits >>> 16));
+            u2((int) bits);
+            // doubles take up two slots in the pool
+            return add(key, 2);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return member(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return member(10, owner, name, descriptor);
+        }
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            String key = tag + ":" + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            bytes.write(tag);
+            u2(ownerIndex);
+            u2(nameAndType);
+            return add(key, 1);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            String key = "nat:" + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            bytes.write(12);
+            u2(nameIndex);
+            u2(descriptorIndex);
+            return add(key, 1);
+        }
+
+        private int reference(String key, int tag, int target) {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            bytes.write(tag);
+            u2(target);
+            return add(key, 1);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private int add(String key, int slots) {
+            int index = count;
+            entries.put(key, index);
+            count += slots;
+            if (count > 0xffff) throw new IllegalStateException("Constant pool is full.");
+            return index;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.RuntimeError;
+import com.arun.interpreter.lox.Token;
+
+/**
+ * Operations called from the classes generated by the {@link Jit}.
+ * Each one reproduces exactly what the tree walk {@link Interpreter} does for the same operator,
+ * including the RuntimeError and its token. They are tiny, so HotSpot inlines them into the generated code.
+ *
+ * The operator token is always the last argument: the generated code pushes it after evaluating the operands.
+ */
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static double negate(Object value, Token operator) {
+        Interpreter.checkNumberOperand(operator, value);
+        return -(double)value;
+    }
+
+    static Boolean not(Object value) {
+        return !Interpreter.isTruthy(value);
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (Interpreter.isString(left) && Interpreter.isString(right)) {
+            return Interpreter.concat(left, right);
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Boolean greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static Boolean greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static Boolean less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static Boolean lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    // Comparisons of operands that are known to be numbers, so the generated code needs no branches.
+    static Boolean greater(double left, double right) {
+        return left > right;
+    }
+
+    static Boolean greaterEqual(double left, double right) {
+        return left >= right;
+    }
+
+    static Boolean less(double left, double right) {
+        return left < right;
+    }
+
+    static Boolean lessEqual(double left, double right) {
+        return left <= right;
+    }
+
+    static Boolean equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Boolean notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+}
@@ -0,0 +1,319 @@
+package com.arun.interpreter.lox.ast;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.arun.interpreter.lox.Token;
+import com.arun.interpreter.lox.TokenBuffer;
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * Reads and writes precompiled expressions, .loxc files, so a script can run without being scanned and parsed again.
+ *
+ * A .loxc file is big endian:
+ *
+ *   magic    4 bytes   "LOXC"
+ *   version  u2        VERSION
+ *   count    varint    number of nodes
+ *   nodes              every node of the tree in post order, children before their parent:
+ *     u1 tag, then for
+ *       NIL, TRUE, FALSE   nothing
+ *       INTEGER            zigzag varint, a number with an int value
+ *       NUMBER             f8 value, any other number
+ *       STRING             varint length, then the string in UTF-8
+ *       GROUPING           nothing, its expression is the node before it
+ *       UNARY, BINARY      u1 operator (TokenType ordinal), varint line of the operator
+ *
+ * A varint is an unsigned LEB128 integer: 7 bits per byte, low bits first, the high bit set on every byte but the
+ * last. Lines and most numbers in a script take a single byte that way.
+ *
+ * Operator lines are kept so runtime errors report the same lines as when the source is run.
+ * The operator is stored as a TokenType ordinal, so VERSION must change whenever TokenType does.
+ *
+ * Files are loaded through a memory mapped FileChannel, nodes are rebuilt straight from the mapped bytes. Only what
+ * write() could have produced is accepted: operators the parser builds nodes for. Neither writing nor reading
+ * recurses, so a tree of any height round trips; the height is read along with it, so the caller can keep a tall one
+ * away from the passes that do recurse.
+ */
+public final class Loxc {
+    static final int MAGIC = 0x4C4F5843; // "LOXC"
+    static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte GROUPING = 5;
+    private static final byte UNARY = 6;
+    private static final byte BINARY = 7;
+    private static final byte INTEGER = 8;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private static final Set<TokenType> UNARY_OPERATORS = EnumSet.of(TokenType.BANG, TokenType.MINUS);
+    private static final Set<TokenType> BINARY_OPERATORS = EnumSet.of(
+            TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL,
+            TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL,
+            TokenType.MINUS, TokenType.PLUS, TokenType.SLASH, TokenType.STAR);
+
+    private Loxc() {}
+
+    /** A tree loaded from a .loxc file, and its height: a literal alone is 1. */
+    public static final class Tree {
+        public final Expr expression;
+        public final int height;
+
+        Tree(Expr expression, int height) {
+            this.expression = expression;
+            this.height = height;
+        }
+    }
+
+    public static void write(Expr expression, Path path) throws IOException {
+        Writer writer = new Writer();
+        writer.write(expression);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            writeVarint(out, writer.count);
+            writer.nodes.writeTo(out);
+        }
+    }
+
+    /** Load the tree in a .loxc file, however tall it is. */
+    public static Tree read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(buffer);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException error) {
+                throw new IOException(path + " is truncated.");
+            }
+        }
+    }
+
+    private static Tree read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 7 || buffer.getInt() != MAGIC) throw new IOException("Not a .loxc file.");
+
+        int version = buffer.getShort() & 0xffff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported .loxc version " + version + ", expected " + VERSION + ".");
+        }
+
+        int count = readVarint(buffer);
+        if (count <= 0) throw new IOException("A .loxc file must hold an expression.");
+
+        // Post order, so every node finds its operands on top of the stack. The height of each subtree sits next to it.
+        Expr[] stack = new Expr[Math.min(count, 1 << 16)];
+        int[] heights = new int[stack.length];
+        int sp = 0;
+        for (int i = 0; i < count; i++) {
+            byte tag = buffer.get();
+            Expr node;
+            int height = 1;
+            switch (tag) {
+                case NIL: node = new Expr.Literal(null); break;
+                case TRUE: node = new Expr.Literal(true); break;
+                case FALSE: node = new Expr.Literal(false); break;
+                case INTEGER: {
+                    int zigzag = readVarint(buffer);
+                    node = new Expr.Literal((double)((zigzag >>> 1) ^ -(zigzag & 1)));
+                    break;
+                }
+                case NUMBER: node = new Expr.Literal(buffer.getDouble()); break;
+                case STRING: {
+                    int length = readVarint(buffer);
+                    if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    node = new Expr.Literal(new String(bytes, StandardCharsets.UTF_8));
+                    break;
+                }
+                case GROUPING:
+                    if (sp < 1) throw new IOException("Malformed .loxc file.");
+                    node = new Expr.Grouping(stack[--sp]);
+                    height = heights[sp] + 1;
+                    break;
+                case UNARY: {
+                    Token operator = operator(buffer, UNARY_OPERATORS, "unary");
+                    if (sp < 1) throw new IOException("Malformed .loxc file.");
+                    node = new Expr.Unary(operator, stack[--sp]);
+                    height = heights[sp] + 1;
+                    break;
+                }
+                case BINARY: {
+                    Token operator = operator(buffer, BINARY_OPERATORS, "binary");
+                    if (sp < 2) throw new IOException("Malformed .loxc file.");
+                    Expr right = stack[--sp];
+                    Expr left = stack[--sp];
+                    node = new Expr.Binary(left, operator, right);
+                    height = Math.max(heights[sp], heights[sp + 1]) + 1;
+                    break;
+                }
+                default:
+                    throw new IOException("Malformed .loxc file, unknown node tag " + tag + ".");
+            }
+
+            if (sp == stack.length) {
+                stack = Arrays.copyOf(stack, sp * 2);
+                heights = Arrays.copyOf(heights, sp * 2);
+            }
+            heights[sp] = height;
+            stack[sp++] = node;
+        }
+
+        if (sp != 1 || buffer.hasRemaining()) throw new IOException("Malformed .loxc file.");
+        return new Tree(stack[0], heights[0]);
+    }
+
+    // The operator of a UNARY or BINARY node, which must be one of the given kind.
+    private static Token operator(ByteBuffer buffer, Set<TokenType> operators, String kind) throws IOException {
+        int ordinal = buffer.get() & 0xff;
+        int line = readVarint(buffer);
+        if (ordinal >= TYPES.length) throw new IOException("Malformed .loxc file, unknown operator " + ordinal + ".");
+
+        TokenType type = TYPES[ordinal];
+        if (!operators.contains(type)) {
+            throw new IOException("Malformed .loxc file, " + type + " is not a " + kind + " operator.");
+        }
+        return new Token(type, TokenBuffer.fixedLexeme(type), null, line);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte next = buffer.get();
+            value |= (next & 0x7f) << shift;
+            if (next >= 0) return value;
+        }
+        throw new IOException("Malformed .loxc file, varint is too long.");
+    }
+
+    // Writes the nodes in post order into memory, counting them for the header. Each visit writes one node, write()
+    // decides the order.
+    private static class Writer implements Visitor<Void> {
+        final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(nodes);
+        int count = 0;
+
+        // The tree is walked on an explicit stack, so it can be of any height. Taking a node off the stack and pushing
+        // its left operand then its right one lists every node before its operands, and right before left: the exact
+        // reverse of post order.
+        void write(Expr expression) {
+            List<Expr> reversed = new ArrayList<>();
+            Deque<Expr> pending = new ArrayDeque<>();
+            pending.push(expression);
+            while (!pending.isEmpty()) {
+                Expr node = pending.pop();
+                reversed.add(node);
+                if (node instanceof Expr.Binary) {
+                    pending.push(((Expr.Binary)node).left);
+                    pending.push(((Expr.Binary)node).right);
+                } else if (node instanceof Expr.Grouping) {
+                    pending.push(((Expr.Grouping)node).expression);
+                } else if (node instanceof Expr.Unary) {
+                    pending.push(((Expr.Unary)node).right);
+                }
+            }
+
+            for (int i = reversed.size() - 1; i >= 0; i--) reversed.get(i).accept(this);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            operator(BINARY, expr.operator);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            try {
+                if (value == null) {
+                    tag(NIL);
+                } else if (value instanceof Boolean) {
+                    tag((boolean)value ? TRUE : FALSE);
+                } else if (value instanceof Double) {
+                    double number = (double)value;
+                    // -0.0 has an int value too, but it has to stay negative zero
+                    if (number == (int)number && Double.doubleToRawLongBits(number) != Double.doubleToRawLongBits(-0.0)) {
+                        tag(INTEGER);
+                        int integer = (int)number;
+                        writeVarint(out, (integer << 1) ^ (integer >> 31));
+                    } else {
+                        tag(NUMBER);
+                        out.writeDouble(number);
+                    }
+                } else {
+                    // The only other thing the parser and the optimizer put in a literal is a String.
+                    byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+                    tag(STRING);
+                    writeVarint(out, bytes.length);
+                    out.write(bytes);
+                }
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            operator(UNARY, expr.operator);
+            return null;
+        }
+
+        private void operator(byte tag, Token operator) {
+            tag(tag);
+            try {
+                out.writeByte(operator.type.ordinal());
+                writeVarint(out, operator.line);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void tag(byte tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            count++;
+        }
+    }
+}
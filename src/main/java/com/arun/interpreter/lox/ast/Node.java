@@ -0,0 +1,496 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.RuntimeError;
+import com.arun.interpreter.lox.Token;
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * Executable, self specializing node tree built from an {@link Expr} tree.
+ *
+ * Binary and unary nodes start out uninitialized. The first time one runs it looks at the operand types
+ * and rewrites itself in its parent into a node specialized for them and for its operator, eg: number + number,
+ * string + string, or generic.
+ * A specialized node only guards its assumption, and if that guard ever fails it deoptimizes by replacing itself
+ * with the generic node for good, so a site can't flip back and forth between specializations.
+ * Since each site ends up running one small monomorphic node, the JIT can inline the whole tree.
+ *
+ * Build a tree once with {@link #create(Expr)} and call {@link Root#execute()} as often as needed. The rewrites are
+ * plain field writes, so a tree must not be run by two threads at the same time.
+ */
+public abstract class Node {
+    Node parent;
+
+    abstract Object execute();
+
+    // Swap this node for another one in the parent and hand the new node back.
+    final <T extends Node> T replace(T replacement) {
+        replacement.parent = parent;
+        parent.replaceChild(this, replacement);
+        return replacement;
+    }
+
+    void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no children.");
+    }
+
+    // Marks a child as owned by this node, so it can later replace itself.
+    <T extends Node> T adopt(T child) {
+        child.parent = this;
+        return child;
+    }
+
+    public static Root create(Expr expression) {
+        return new Root(expression.accept(new Builder()));
+    }
+
+    /** The top of a node tree. */
+    public static class Root extends Node {
+        private Node body;
+
+        Root(Node body) {
+            this.body = adopt(body);
+        }
+
+        @Override
+        public Object execute() {
+            return body.execute();
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (body == oldChild) body = newChild;
+        }
+
+        /** Print the tree with the current specialization of each node, eg: (NumberSubtract - 1.0 2.0) */
+        public String dump() {
+            return dump(body);
+        }
+
+        private static String dump(Node node) {
+            if (node instanceof Literal) return Interpreter.stringify(((Literal)node).value);
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode)node;
+                return "(" + node.getClass().getSimpleName() + " " + binary.operator.lexeme + " " +
+                        dump(binary.left) + " " + dump(binary.right) + ")";
+            }
+            UnaryNode unary = (UnaryNode)node;
+            return "(" + node.getClass().getSimpleName() + " " + unary.operator.lexeme + " " + dump(unary.right) + ")";
+        }
+    }
+
+    // Builds the uninitialized node tree. Grouping nodes only exist for the parser and are dropped here.
+    private static class Builder implements Visitor<Node> {
+        @Override
+        public Node visitBinaryExpr(Expr.Binary expr) {
+            return new UninitializedBinary(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Node visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Node visitLiteralExpr(Expr.Literal expr) {
+            return new Literal(expr.value);
+        }
+
+        @Override
+        public Node visitUnaryExpr(Expr.Unary expr) {
+            return new UninitializedUnary(expr.operator, expr.right.accept(this));
+        }
+    }
+
+    static class Literal extends Node {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute() {
+            return value;
+        }
+    }
+
+    abstract static class BinaryNode extends Node {
+        Node left;
+        final Token operator;
+        Node right;
+
+        BinaryNode(Node left, Token operator, Node right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute() {
+            Object leftValue = left.execute();
+            Object rightValue = right.execute();
+            return executeWith(leftValue, rightValue);
+        }
+
+        // Operands are evaluated once by execute(), a node that rewrites itself passes them on to its replacement.
+        abstract Object executeWith(Object leftValue, Object rightValue);
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) left = newChild;
+            if (right == oldChild) right = newChild;
+        }
+
+        Object deoptimize(Object leftValue, Object rightValue) {
+            return replace(new GenericBinary(left, operator, right)).executeWith(leftValue, rightValue);
+        }
+    }
+
+    static class UninitializedBinary extends BinaryNode {
+        UninitializedBinary(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            BinaryNode specialized;
+            switch (operator.type) {
+                case BANG_EQUAL:
+                case EQUAL_EQUAL:
+                    // Equality works on any types, there is nothing to specialize on.
+                    specialized = new GenericBinary(left, operator, right);
+                    break;
+                case PLUS:
+                    if (Interpreter.isString(leftValue) && Interpreter.isString(rightValue)) {
+                        specialized = new StringBinary(left, operator, right);
+                    } else {
+                        specialized = numeric(leftValue, rightValue);
+                    }
+                    break;
+                default:
+                    specialized = numeric(leftValue, rightValue);
+            }
+            return replace(specialized).executeWith(leftValue, rightValue);
+        }
+
+        // The arithmetic and comparison operators only specialize on numbers, anything else raises its error in
+        // the generic node.
+        private BinaryNode numeric(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return new GenericBinary(left, operator, right);
+            }
+
+            switch (operator.type) {
+                case PLUS: return new NumberAdd(left, operator, right);
+                case MINUS: return new NumberSubtract(left, operator, right);
+                case STAR: return new NumberMultiply(left, operator, right);
+                case SLASH: return new NumberDivide(left, operator, right);
+                case GREATER: return new NumberGreater(left, operator, right);
+                case GREATER_EQUAL: return new NumberGreaterEqual(left, operator, right);
+                case LESS: return new NumberLess(left, operator, right);
+                case LESS_EQUAL: return new NumberLessEqual(left, operator, right);
+            }
+            throw new IllegalArgumentException("Unexpected binary operator " + operator.lexeme);
+        }
+    }
+
+    // Arithmetic and comparison sites whose operands have always both been numbers. There is a class per operator,
+    // so the operation is picked once, when the node specializes, and every site runs code for its operator alone.
+    // Each one only guards the operand types. They repeat execute(): the call to executeWith in BinaryNode's is shared
+    // by every kind of binary node and would be megamorphic, in a final class of its own it is bound statically.
+
+    static final class NumberAdd extends BinaryNode {
+        NumberAdd(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue + (double)rightValue;
+        }
+    }
+
+    static final class NumberSubtract extends BinaryNode {
+        NumberSubtract(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue - (double)rightValue;
+        }
+    }
+
+    static final class NumberMultiply extends BinaryNode {
+        NumberMultiply(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue * (double)rightValue;
+        }
+    }
+
+    static final class NumberDivide extends BinaryNode {
+        NumberDivide(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue / (double)rightValue;
+        }
+    }
+
+    static final class NumberGreater extends BinaryNode {
+        NumberGreater(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue > (double)rightValue;
+        }
+    }
+
+    static final class NumberGreaterEqual extends BinaryNode {
+        NumberGreaterEqual(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue >= (double)rightValue;
+        }
+    }
+
+    static final class NumberLess extends BinaryNode {
+        NumberLess(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue < (double)rightValue;
+        }
+    }
+
+    static final class NumberLessEqual extends BinaryNode {
+        NumberLessEqual(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute() {
+            return executeWith(left.execute(), right.execute());
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return (double)leftValue <= (double)rightValue;
+        }
+    }
+
+    // A + site that has always concatenated two strings.
+    static class StringBinary extends BinaryNode {
+        StringBinary(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (!(Interpreter.isString(leftValue) && Interpreter.isString(rightValue))) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return Interpreter.concat(leftValue, rightValue);
+        }
+    }
+
+    // Handles any operand types, with the same checks and errors as the tree walk interpreter.
+    static class GenericBinary extends BinaryNode {
+        GenericBinary(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            switch (operator.type) {
+                case BANG_EQUAL: return !Interpreter.isEqual(leftValue, rightValue);
+                case EQUAL_EQUAL: return Interpreter.isEqual(leftValue, rightValue);
+                case PLUS:
+                    if (leftValue instanceof Double && rightValue instanceof Double) {
+                        return (double)leftValue + (double)rightValue;
+                    }
+                    if (Interpreter.isString(leftValue) && Interpreter.isString(rightValue)) {
+                        return Interpreter.concat(leftValue, rightValue);
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            }
+
+            Interpreter.checkNumberOperands(operator, leftValue, rightValue);
+            double a = (double)leftValue;
+            double b = (double)rightValue;
+            switch (operator.type) {
+                case MINUS: return a - b;
+                case SLASH: return a / b;
+                case STAR: return a * b;
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+            }
+
+            // Unreachable.
+            return null;
+        }
+    }
+
+    abstract static class UnaryNode extends Node {
+        final Token operator;
+        Node right;
+
+        UnaryNode(Token operator, Node right) {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        final Object execute() {
+            return executeWith(right.execute());
+        }
+
+        abstract Object executeWith(Object value);
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (right == oldChild) right = newChild;
+        }
+
+        Object deoptimize(Object value) {
+            return replace(new GenericUnary(operator, right)).executeWith(value);
+        }
+    }
+
+    static class UninitializedUnary extends UnaryNode {
+        UninitializedUnary(Token operator, Node right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object executeWith(Object value) {
+            UnaryNode specialized;
+            if (operator.type == TokenType.MINUS && value instanceof Double) {
+                specialized = new NumberNegate(operator, right);
+            } else if (operator.type == TokenType.BANG && value instanceof Boolean) {
+                specialized = new BooleanNot(operator, right);
+            } else {
+                specialized = new GenericUnary(operator, right);
+            }
+            return replace(specialized).executeWith(value);
+        }
+    }
+
+    static class NumberNegate extends UnaryNode {
+        NumberNegate(Token operator, Node right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object executeWith(Object value) {
+            if (!(value instanceof Double)) return deoptimize(value);
+            return -(double)value;
+        }
+    }
+
+    static class BooleanNot extends UnaryNode {
+        BooleanNot(Token operator, Node right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object executeWith(Object value) {
+            if (!(value instanceof Boolean)) return deoptimize(value);
+            return !(boolean)value;
+        }
+    }
+
+    static class GenericUnary extends UnaryNode {
+        GenericUnary(Token operator, Node right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object executeWith(Object value) {
+            switch (operator.type) {
+                case MINUS:
+                    Interpreter.checkNumberOperand(operator, value);
+                    return -(double)value;
+                case BANG:
+                    return !Interpreter.isTruthy(value);
+            }
+
+            // Unreachable.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Counts the nodes of an expression tree, groupings included. A shared node is counted once per parent.
+ * The nodes still to count wait on an explicit stack, so any depth of tree can be counted.
+ */
+public class NodeCounter implements Visitor<Void> {
+    private final Deque<Expr> pending = new ArrayDeque<>();
+    private int count = 0;
+
+    public static int count(Expr expression) {
+        NodeCounter counter = new NodeCounter();
+        counter.pending.push(expression);
+        while (!counter.pending.isEmpty()) counter.pending.pop().accept(counter);
+        return counter.count;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        count++;
+        pending.push(expr.right);
+        pending.push(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        count++;
+        pending.push(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        count++;
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        count++;
+        pending.push(expr.right);
+        return null;
+    }
+}
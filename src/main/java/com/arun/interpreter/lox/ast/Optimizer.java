@@ -0,0 +1,193 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * An optimization pass that runs between parsing and interpreting.
+ * It rewrites the expression tree bottom up:
+ *  - literal arithmetic, comparisons, equality, string concatenation and unary operators on literals are folded
+ *    into a single literal, eg: (1 + 2) * (4 - 3) becomes 3
+ *  - grouping nodes are dropped, the shape of the tree already encodes the precedence
+ *  - a few algebraic identities are simplified when the operand is known to be a number or a boolean,
+ *    eg: x * 1, x / 1, x - 0, -(-x) and !!x
+ *
+ * Anything that would throw a RuntimeError (eg: 1 + "a" or -"a") is left alone, so the error is still reported
+ * at runtime with the original operator token.
+ */
+public class Optimizer implements Visitor<Expr> {
+    // number of nodes removed by the last call to optimize
+    private int removed;
+
+    public Expr optimize(Expr expression) {
+        removed = 0;
+        return expression.accept(this);
+    }
+
+    public int removedNodes() {
+        return removed;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expr.left.accept(this);
+        Expr right = expr.right.accept(this);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object a = ((Expr.Literal)left).value;
+            Object b = ((Expr.Literal)right).value;
+            Expr folded = fold(expr, a, b);
+            if (folded != null) {
+                removed += 2;
+                return folded;
+            }
+        }
+
+        Expr simplified = simplify(expr, left, right);
+        if (simplified != null) {
+            removed += 2;
+            return simplified;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        removed++;
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = expr.right.accept(this);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            switch (expr.operator.type) {
+                case MINUS:
+                    if (value instanceof Double) {
+                        removed++;
+                        return new Expr.Literal(-(double)value);
+                    }
+                    break;
+                case BANG:
+                    removed++;
+                    return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+        }
+
+        // -(-x) is x and !!x is x, as long as x already has the type the outer operator would produce.
+        if (right instanceof Expr.Unary) {
+            Expr.Unary inner = (Expr.Unary)right;
+            if (inner.operator.type == expr.operator.type) {
+                if (expr.operator.type == TokenType.MINUS && isNumber(inner.right)) {
+                    removed += 2;
+                    return inner.right;
+                }
+                if (expr.operator.type == TokenType.BANG && isBoolean(inner.right)) {
+                    removed += 2;
+                    return inner.right;
+                }
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    // Evaluate a binary operator on two literal operands, returns null if it would be a runtime error.
+    private Expr fold(Expr.Binary expr, Object a, Object b) {
+        switch (expr.operator.type) {
+            case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(a, b));
+            case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(a, b));
+            case PLUS:
+                if (a instanceof String && b instanceof String) {
+                    return new Expr.Literal((String)a + (String)b);
+                }
+                break;
+        }
+
+        if (!(a instanceof Double && b instanceof Double)) return null;
+        double x = (double)a;
+        double y = (double)b;
+
+        switch (expr.operator.type) {
+            case MINUS: return new Expr.Literal(x - y);
+            case SLASH: return new Expr.Literal(x / y);
+            case STAR: return new Expr.Literal(x * y);
+            case PLUS: return new Expr.Literal(x + y);
+            case GREATER: return new Expr.Literal(x > y);
+            case GREATER_EQUAL: return new Expr.Literal(x >= y);
+            case LESS: return new Expr.Literal(x < y);
+            case LESS_EQUAL: return new Expr.Literal(x <= y);
+        }
+        return null;
+    }
+
+    // Algebraic identities. x + 0 is not one of them: -0 + 0 is 0, not -0.
+    private Expr simplify(Expr.Binary expr, Expr left, Expr right) {
+        switch (expr.operator.type) {
+            case STAR:
+                if (isNumber(left) && isLiteral(right, 1.0)) return left;
+                if (isLiteral(left, 1.0) && isNumber(right)) return right;
+                break;
+            case SLASH:
+                if (isNumber(left) && isLiteral(right, 1.0)) return left;
+                break;
+            case MINUS:
+                if (isNumber(left) && isLiteral(right, 0.0)) return left;
+                break;
+        }
+        return null;
+    }
+
+    private boolean isLiteral(Expr expr, double value) {
+        if (!(expr instanceof Expr.Literal)) return false;
+        Object literal = ((Expr.Literal)expr).value;
+        return literal instanceof Double && (double)literal == value;
+    }
+
+    // An expression is known to produce a number if it is a number literal or an operator
+    // that either returns a number or throws: -, *, / and unary -.
+    private boolean isNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary)expr).operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // An expression is known to produce a boolean if it is a boolean literal, a comparison, an equality or a !.
+    private boolean isBoolean(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Boolean;
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.type == TokenType.BANG;
+        }
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary)expr).operator.type) {
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case BANG_EQUAL:
+                case EQUAL_EQUAL:
+                    return true;
+            }
+        }
+        return false;
+    }
+}
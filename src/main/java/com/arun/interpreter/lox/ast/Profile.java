@@ -0,0 +1,244 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.arun.interpreter.lox.Token;
+import com.arun.interpreter.lox.TokenType;
+
+/**
+ * Execution profile collected by the {@link ProfilingInterpreter}: for every operator node that ran, how often it ran,
+ * the time spent in it and the types of the operands it saw. Off by default, turn it on with -Dlox.profile=true.
+ *
+ * Time is kept both ways: total time includes the operands, self time is the node's own work. The per operator
+ * totals, eg: all the + nodes together, are added up as evaluations are merged.
+ *
+ * The type profile says which kinds of values reach a site, eg: a + that only ever adds two numbers can be compiled
+ * to a plain double addition, one that also sees strings can't.
+ *
+ * Sites are keyed by their operator token, not by their node, so the profile doesn't keep any tree alive. Without a
+ * cache every evaluation parses new tokens, so past MAX_SITES the sites with the least self time are dropped, they
+ * only live on in the operator totals. Any number of interpreters can merge into one profile at once.
+ */
+public final class Profile {
+    public static final boolean ENABLED = Boolean.getBoolean("lox.profile");
+
+    /** The kinds of values a Lox expression produces. */
+    public enum Type {
+        NIL, BOOLEAN, NUMBER, STRING;
+
+        private static final Type[] VALUES = values();
+
+        public static Type of(Object value) {
+            if (value == null) return NIL;
+            if (value instanceof Boolean) return BOOLEAN;
+            if (value instanceof Double) return NUMBER;
+            return STRING;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int TYPES = Type.VALUES.length;
+
+    // Sites kept for the hot spots, trimmed back to 90% when there are more.
+    static final int MAX_SITES = 10_000;
+
+    private final Map<Token, Site> sites = new IdentityHashMap<>();
+    // Unary and binary minus share a TokenType, so the operators are told apart by arity as well.
+    private final Map<TokenType, Site> unary = new EnumMap<>(TokenType.class);
+    private final Map<TokenType, Site> binary = new EnumMap<>(TokenType.class);
+    private long evaluations = 0;
+    private long nanos = 0;
+
+    /** Profile of one operator node, a binary or unary expression. */
+    public static final class Site {
+        private final Token operator;
+        private final boolean binary;
+        private long count = 0;
+        private long selfNanos = 0;
+        private long totalNanos = 0;
+        // Counts of the operand types. A binary site uses left * TYPES + right, a unary site just the type.
+        private final long[] types = new long[TYPES * TYPES];
+
+        Site(Token operator, boolean binary) {
+            this.operator = operator;
+            this.binary = binary;
+        }
+
+        public Token operator() {
+            return operator;
+        }
+
+        public boolean binary() {
+            return binary;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long selfNanos() {
+            return selfNanos;
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        /** Times a binary site saw these operand types. Operands of an operator that failed are included. */
+        public long count(Type left, Type right) {
+            return types[left.ordinal() * TYPES + right.ordinal()];
+        }
+
+        /** Times a unary site saw an operand of this type. */
+        public long count(Type operand) {
+            return types[operand.ordinal()];
+        }
+
+        // Called while evaluating, on a site that only the calling interpreter can see.
+        void record(long self, long total) {
+            count++;
+            selfNanos += self;
+            totalNanos += total;
+        }
+
+        void recordTypes(Object left, Object right) {
+            types[Type.of(left).ordinal() * TYPES + Type.of(right).ordinal()]++;
+        }
+
+        void recordType(Object operand) {
+            types[Type.of(operand).ordinal()]++;
+        }
+
+        private void add(Site other) {
+            count += other.count;
+            selfNanos += other.selfNanos;
+            totalNanos += other.totalNanos;
+            for (int i = 0; i < types.length; i++) types[i] += other.types[i];
+        }
+
+        private Site copy() {
+            Site copy = new Site(operator, binary);
+            copy.add(this);
+            return copy;
+        }
+
+        // eg: number+number 90%, string+string 10%
+        private String types() {
+            long seen = 0;
+            for (long count : types) seen += count;
+            if (seen == 0) return "";
+
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == 0) continue;
+                if (text.length() > 0) text.append(", ");
+                if (binary) {
+                    text.append(Type.VALUES[i / TYPES]).append(operator.lexeme).append(Type.VALUES[i % TYPES]);
+                } else {
+                    text.append(operator.lexeme).append(Type.VALUES[i]);
+                }
+                text.append(' ').append(Math.round(100.0 * types[i] / seen)).append('%');
+            }
+            return text.toString();
+        }
+    }
+
+    /** Add the sites an interpreter profiled during one evaluation that took the given time. */
+    synchronized void merge(Map<Expr, Site> profiled, long evaluationNanos) {
+        evaluations++;
+        nanos += evaluationNanos;
+        for (Site profiledSite : profiled.values()) {
+            Site site = sites.get(profiledSite.operator);
+            if (site == null) {
+                sites.put(profiledSite.operator, profiledSite.copy());
+            } else {
+                site.add(profiledSite);
+            }
+            Map<TokenType, Site> operators = profiledSite.binary ? binary : unary;
+            Site total = operators.get(profiledSite.operator.type);
+            if (total == null) {
+                operators.put(profiledSite.operator.type, profiledSite.copy());
+            } else {
+                total.add(profiledSite);
+            }
+        }
+        if (sites.size() > MAX_SITES) trim();
+    }
+
+    // Drop the coldest sites, they are already counted in the operator totals.
+    private void trim() {
+        List<Site> coldest = new ArrayList<>(sites.values());
+        coldest.sort(Comparator.comparingLong(Site::selfNanos));
+        for (Site site : coldest.subList(0, coldest.size() - MAX_SITES / 10 * 9)) sites.remove(site.operator);
+    }
+
+    /**
+     * A copy of the profile of a node, null if the node has not run or its site was dropped as one of the coldest.
+     * Nodes that share an operator token, eg: from the optimizer, share a site.
+     */
+    public synchronized Site site(Expr node) {
+        Token operator = node instanceof Expr.Binary ? ((Expr.Binary) node).operator
+                : node instanceof Expr.Unary ? ((Expr.Unary) node).operator : null;
+        Site site = operator == null ? null : sites.get(operator);
+        return site == null ? null : site.copy();
+    }
+
+    public synchronized long evaluations() {
+        return evaluations;
+    }
+
+    /** The most expensive sites by self time, the first limit of them. */
+    public synchronized List<Site> hottest(int limit) {
+        List<Site> hottest = new ArrayList<>();
+        for (Site site : sites.values()) hottest.add(site.copy());
+        hottest.sort(Comparator.comparingLong(Site::selfNanos).reversed());
+        return hottest.size() > limit ? new ArrayList<>(hottest.subList(0, limit)) : hottest;
+    }
+
+    /**
+     * A report of the hottest sites, with their line, operator and type profile, followed by the totals per
+     * operator, eg:
+     *
+     *   Profiled 3000 evaluations, 88.1ms
+     *
+     *   Hot spots by self time:
+     *       line  op        count       self      total  types
+     *         12  +          1000     10.4ms     20.3ms  number+number 90%, string+string 10%
+     */
+    public synchronized String report(int limit) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Profiled %d evaluations, %s%n%n", evaluations, millis(nanos)));
+
+        report.append(String.format("Hot spots by self time:%n"));
+        report.append(String.format("%8s  %-4s %10s %10s %10s  %s%n", "line", "op", "count", "self", "total", "types"));
+        for (Site site : hottest(limit)) {
+            report.append(String.format("%8d  %-4s %10d %10s %10s  %s%n", site.operator.line, site.operator.lexeme,
+                    site.count, millis(site.selfNanos), millis(site.totalNanos), site.types()));
+        }
+
+        List<Site> operators = new ArrayList<>(binary.values());
+        operators.addAll(unary.values());
+        operators.sort(Comparator.comparingLong(Site::selfNanos).reversed());
+
+        report.append(String.format("%nOperators by self time:%n"));
+        report.append(String.format("%-16s %10s %10s  %s%n", "operator", "count", "self", "types"));
+        for (Site site : operators) {
+            String name = (site.binary ? "" : "unary ") + site.operator.type;
+            report.append(String.format("%-16s %10d %10s  %s%n", name, site.count, millis(site.selfNanos), site.types()));
+        }
+        return report.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+}
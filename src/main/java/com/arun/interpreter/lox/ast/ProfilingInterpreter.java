@@ -0,0 +1,93 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.arun.interpreter.lox.Token;
+
+/**
+ * A tree walk interpreter that records a {@link Profile} as it goes: every binary and unary node is counted and
+ * timed, and the types of its operands are noted.
+ *
+ * It evaluates with boxed values all the way, so a run is slower than with the {@link Interpreter}, but the values
+ * and the RuntimeErrors are the same. Literals and groupings are not timed on their own, their cost is part of the
+ * self time of the operator above them.
+ *
+ * Sites are collected per evaluation and merged into the profile at the end, a failed evaluation included. Use one
+ * instance per thread, the profile can be shared.
+ */
+public class ProfilingInterpreter implements Visitor<Object> {
+    private final Profile profile;
+    private final Map<Expr, Profile.Site> sites = new IdentityHashMap<>();
+    // Time spent in the operator nodes below the one being evaluated.
+    private long childNanos = 0;
+
+    public ProfilingInterpreter(Profile profile) {
+        this.profile = profile;
+    }
+
+    public Object evaluate(Expr expression) {
+        long start = System.nanoTime();
+        try {
+            return expression.accept(this);
+        } finally {
+            profile.merge(sites, System.nanoTime() - start);
+            sites.clear();
+            childNanos = 0;
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        Profile.Site site = site(expr, expr.operator, true);
+        long outerChildNanos = childNanos;
+        childNanos = 0;
+        long start = System.nanoTime();
+        try {
+            Object left = expr.left.accept(this);
+            Object right = expr.right.accept(this);
+            site.recordTypes(left, right);
+            return Interpreter.binary(expr.operator, left, right);
+        } finally {
+            long total = System.nanoTime() - start;
+            site.record(total - childNanos, total);
+            childNanos = outerChildNanos + total;
+        }
+    }
+
+    @Override
+    public Object visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        return expr.value;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        Profile.Site site = site(expr, expr.operator, false);
+        long outerChildNanos = childNanos;
+        childNanos = 0;
+        long start = System.nanoTime();
+        try {
+            Object right = expr.right.accept(this);
+            site.recordType(right);
+            return Interpreter.unary(expr.operator, right);
+        } finally {
+            long total = System.nanoTime() - start;
+            site.record(total - childNanos, total);
+            childNanos = outerChildNanos + total;
+        }
+    }
+
+    private Profile.Site site(Expr expr, Token operator, boolean binary) {
+        Profile.Site site = sites.get(expr);
+        if (site == null) {
+            site = new Profile.Site(operator, binary);
+            sites.put(expr, site);
+        }
+        return site;
+    }
+}
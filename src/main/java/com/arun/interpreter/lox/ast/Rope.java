@@ -0,0 +1,95 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.ArrayDeque;
+
+/**
+ * A string value built by concatenation, without copying the characters.
+ *
+ * Concatenating two Strings with + copies both of them. The parser builds a + chain left associated, so
+ * "a" + "b" + "c" + ... copies the growing left operand once per +, which is quadratic in the length of the result.
+ * A rope just points at its two halves instead, so each + is constant time, and the characters are copied once,
+ * the first time somebody needs them: stringify, isEqual or anything else that calls toString().
+ *
+ * Lox string values are either a String or a Rope, {@link Interpreter#isString(Object)} checks for both.
+ * Ropes never escape an evaluation, {@link com.arun.interpreter.lox.Result} hands them out as Strings.
+ */
+public final class Rope implements CharSequence {
+    // Below this length concatenating just copies, a rope node costs more than the characters it saves copying.
+    private static final int MIN_LENGTH = 64;
+
+    private final CharSequence left;
+    private final CharSequence right;
+    private final int length;
+
+    // The flattened text, once somebody asked for it. A rope can be shared between threads, eg: in a cached
+    // expression, the worst a race can do is flatten it twice.
+    private volatile String flat;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /** Concatenate two string values, each either a String or a Rope. */
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+
+        int length = left.length() + right.length();
+        if (length < 0) throw new OutOfMemoryError("String is too long.");
+        if (length < MIN_LENGTH) return left.toString().concat(right.toString());
+
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String text = flat;
+        if (text == null) {
+            text = flatten();
+            flat = text;
+        }
+        return text;
+    }
+
+    // Copy the leaves out in order. A left associated chain is as deep as it is long, so this walks the tree with
+    // an explicit stack rather than recursion.
+    private String flatten() {
+        StringBuilder builder = new StringBuilder(length);
+        ArrayDeque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+
+        while (!pending.isEmpty()) {
+            CharSequence next = pending.pop();
+            if (next instanceof Rope) {
+                Rope rope = (Rope)next;
+                // A part that has already been flattened is copied in one go.
+                if (rope != this && rope.flat != null) {
+                    builder.append(rope.flat);
+                } else {
+                    pending.push(rope.right);
+                    pending.push(rope.left);
+                }
+            } else {
+                builder.append(next);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.arun.interpreter.lox.ast;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.arun.interpreter.lox.Token;
+
+/**
+ * Rough estimate of how many bytes of heap an expression tree holds on to, assuming a 64 bit JVM with
+ * compressed references: 12 byte object headers, 4 byte references, everything padded to 8 bytes.
+ * It is meant for sizing caches, not for exact accounting.
+ *
+ * An interned tree is a DAG, a node can hang off several parents. Each node and token is counted the first time it is
+ * reached, after that only the reference to it is, which the parent's size already includes.
+ */
+public class SizeEstimator implements Visitor<Long> {
+    private final Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public long estimate(Expr expression) {
+        return size(expression);
+    }
+
+    private long size(Expr expr) {
+        return counted.add(expr) ? expr.accept(this) : 0;
+    }
+
+    @Override
+    public Long visitBinaryExpr(Expr.Binary expr) {
+        return 24 + token(expr.operator) + size(expr.left) + size(expr.right);
+    }
+
+    @Override
+    public Long visitGroupingExpr(Expr.Grouping expr) {
+        return 16 + size(expr.expression);
+    }
+
+    @Override
+    public Long visitLiteralExpr(Expr.Literal expr) {
+        return 16 + value(expr.value);
+    }
+
+    @Override
+    public Long visitUnaryExpr(Expr.Unary expr) {
+        return 24 + token(expr.operator) + size(expr.right);
+    }
+
+    private long token(Token token) {
+        return counted.add(token) ? 32 + string(token.lexeme) : 0;
+    }
+
+    private static long value(Object value) {
+        if (value instanceof Double) return 16;
+        if (value instanceof String) return string((String)value);
+        // nil and the two booleans are shared
+        return 0;
+    }
+
+    public static long string(String text) {
+        // String object plus its Latin-1 byte array
+        return 24 + align(16 + text.length());
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
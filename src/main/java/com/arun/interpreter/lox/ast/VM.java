@@ -0,0 +1,121 @@
+package com.arun.interpreter.lox.ast;
+
+import com.arun.interpreter.lox.RuntimeError;
+
+import static com.arun.interpreter.lox.ast.Chunk.*;
+
+/**
+ * A stack based virtual machine that runs the bytecode produced by the {@link Compiler}.
+ * It is an alternative backend to the tree walk {@link Interpreter} and must produce the same
+ * results and the same runtime errors. The VM keeps no state between runs, so one instance can be shared.
+ */
+public class VM {
+    /**
+     * Runs a compiled chunk and returns the value left on top of the stack.
+     * The chunk can be run any number of times, each run gets its own operand stack.
+     */
+    public Object run(Chunk chunk) {
+        final byte[] code = chunk.code;
+        final Object[] constants = chunk.constants;
+        final Object[] stack = new Object[chunk.maxStack];
+        int sp = 0;
+        int ip = 0;
+
+        for (;;) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OP_CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = constants[index];
+                    break;
+                }
+                case OP_NIL: stack[sp++] = null; break;
+                case OP_TRUE: stack[sp++] = true; break;
+                case OP_FALSE: stack[sp++] = false; break;
+                case OP_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OP_NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OP_GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left > (double)right;
+                    break;
+                }
+                case OP_GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left >= (double)right;
+                    break;
+                }
+                case OP_LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left < (double)right;
+                    break;
+                }
+                case OP_LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left <= (double)right;
+                    break;
+                }
+                case OP_ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double)left + (double)right;
+                    } else if (Interpreter.isString(left) && Interpreter.isString(right)) {
+                        stack[sp - 1] = Interpreter.concat(left, right);
+                    } else {
+                        throw new RuntimeError(chunk.tokens[ip - 1], "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OP_SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left - (double)right;
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left * (double)right;
+                    break;
+                }
+                case OP_DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperands(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left / (double)right;
+                    break;
+                }
+                case OP_NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OP_NEGATE:
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], stack[sp - 1]);
+                    stack[sp - 1] = -(double)stack[sp - 1];
+                    break;
+                case OP_RETURN:
+                    return stack[sp - 1];
+                default:
+                    throw new IllegalStateException("Unknown opcode " + instruction);
+            }
+        }
+    }
+}